@@ -0,0 +1,63 @@
+package gr.iti.mklab.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Stores a real page as a benchmark fixture: downloads it, following redirects, writes its content as it was
+ * received in the fixture folder and lists it in <samp>pages.txt</samp> with its final URL and content type.
+ * <p/>
+ * <p>Run it from the benchmark folder, e.g. <samp>java -cp target/benchmarks.jar gr.iti.mklab.benchmarks.CaptureFixture
+ * URL FILE</samp>, then rebuild; the page is benchmarked with <samp>-p page=FILE</samp>.
+ */
+public class CaptureFixture {
+
+    /**
+     * The fixture folder, relative to the benchmark folder.
+     */
+    private static final File FOLDER = new File("src/main/resources/fixtures/pages");
+
+    public static void main(String arg[]) throws IOException {
+        if (arg.length != 2) {
+            System.err.println("Usage: " + CaptureFixture.class.getName() + " URL FILE");
+            System.exit(1);
+        }
+        final File file = new File(FOLDER, arg[1]);
+        if (file.exists()) throw new IOException(file + " already exists");
+
+        final HttpURLConnection connection = (HttpURLConnection) new URL(arg[0]).openConnection();
+        connection.setInstanceFollowRedirects(true);
+        // the crawler asks for the content as it is, so must the fixture
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+            throw new IOException(arg[0] + " returned " + connection.getResponseCode());
+        final String contentType = connection.getContentType();
+        final InputStream in = connection.getInputStream();
+        try {
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                final byte[] buffer = new byte[8192];
+                for (int n; (n = in.read(buffer)) != -1; ) out.write(buffer, 0, n);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        final Writer pages = new OutputStreamWriter(new FileOutputStream(new File(FOLDER, "pages.txt"), true), "UTF-8");
+        try {
+            pages.write(arg[1] + " " + connection.getURL() + (contentType == null ? "" : " " + contentType) + "\n");
+        } finally {
+            pages.close();
+        }
+        System.out.println("Wrote " + file);
+    }
+}
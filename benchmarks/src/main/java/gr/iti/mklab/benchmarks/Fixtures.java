@@ -0,0 +1,181 @@
+package gr.iti.mklab.benchmarks;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import javax.imageio.ImageIO;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.util.Random;
+
+/**
+ * The offline inputs of the benchmarks.
+ * <p/>
+ * <p>Pages are checked in under <samp>fixtures/pages</samp> and listed, with the URL they are parsed as and the
+ * content type they were served with, in <samp>fixtures/pages/pages.txt</samp>. Responses are stored there by
+ * {@link CaptureFixture}; the pages that come with the benchmarks are synthetic, written after the layout of common
+ * sites, and should be complemented with captured ones. Images are generated deterministically instead of being checked
+ * in: smooth gradients with overlapping shapes, so that they compress and decode like photos rather than like noise.
+ */
+public final class Fixtures {
+
+    private static final String PAGES = "/fixtures/pages/";
+
+    private Fixtures() {
+    }
+
+    /**
+     * The size classes of the image benchmarks.
+     */
+    public enum Size {
+        /**
+         * Just above the minimum size accepted by the crawler.
+         */
+        SMALL(500, 400),
+        /**
+         * About the pixel budget of vectorization.
+         */
+        MEDIUM(1024, 768),
+        /**
+         * A typical large photo on a news site.
+         */
+        LARGE(3000, 2000),
+        /**
+         * A full-resolution press photo.
+         */
+        HUGE(6000, 4000);
+
+        public final int width;
+        public final int height;
+
+        Size(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Returns the URL a page is parsed as.
+     *
+     * @param name the file name of a page listed in <samp>pages.txt</samp>.
+     */
+    public static URI pageUri(String name) throws IOException {
+        return URI.create(entry(name)[1]);
+    }
+
+    /**
+     * Builds the response of a page, with the content type it was served with.
+     *
+     * @param name the file name of a page listed in <samp>pages.txt</samp>.
+     */
+    public static HttpResponse pageResponse(String name) throws IOException {
+        final String[] entry = entry(name);
+        return response(page(name), entry.length > 2 ? entry[2] : "text/html");
+    }
+
+    /**
+     * @return the fields of the line of <samp>pages.txt</samp> listing a page: its file, its URL and, optionally,
+     * its content type.
+     */
+    private static String[] entry(String name) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(resource("pages.txt"), "UTF-8"));
+        try {
+            for (String line; (line = reader.readLine()) != null; ) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                final String[] fields = line.split("\\s+", 3);
+                if (fields[0].equals(name)) return fields;
+            }
+        } finally {
+            reader.close();
+        }
+        throw new IllegalArgumentException("Page " + name + " is not listed in " + PAGES + "pages.txt");
+    }
+
+    /**
+     * @return the content of a page.
+     */
+    public static byte[] page(String name) throws IOException {
+        final InputStream in = resource(name);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) != -1; ) out.write(buffer, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static InputStream resource(String name) throws IOException {
+        final InputStream in = Fixtures.class.getResourceAsStream(PAGES + name);
+        if (in == null) throw new IOException("Missing fixture " + PAGES + name);
+        return in;
+    }
+
+    /**
+     * Generates an image of a given size class.
+     */
+    public static BufferedImage image(Size size) {
+        final BufferedImage image = new BufferedImage(size.width, size.height, BufferedImage.TYPE_3BYTE_BGR);
+        final Graphics2D g = image.createGraphics();
+        try {
+            final Random random = new Random(size.ordinal());
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setPaint(new GradientPaint(0, 0, new Color(40, 70, 120), size.width, size.height, new Color(230, 200, 150)));
+            g.fillRect(0, 0, size.width, size.height);
+            for (int i = 0; i < 60; i++) {
+                final int w = 20 + random.nextInt(size.width / 4), h = 20 + random.nextInt(size.height / 4);
+                final int x = random.nextInt(size.width), y = random.nextInt(size.height);
+                g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 96 + random.nextInt(128)));
+                if (i % 3 == 0) g.fillOval(x, y, w, h);
+                else if (i % 3 == 1) g.fillRect(x, y, w, h);
+                else {
+                    g.setStroke(new BasicStroke(1 + random.nextInt(12)));
+                    g.drawLine(x, y, x + w, y + h);
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * Encodes an image.
+     *
+     * @param format an ImageIO format name, e.g. <samp>jpg</samp>.
+     * @param slack  the number of bytes to append after the encoded image, which decoders ignore.
+     */
+    public static byte[] encode(BufferedImage image, String format, int slack) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, format, out)) throw new IllegalArgumentException("No writer for " + format);
+        out.write(new byte[slack]);
+        return out.toByteArray();
+    }
+
+    /**
+     * Builds a response as the parsers receive it.
+     */
+    public static HttpResponse response(byte[] content, String contentType) {
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        final ByteArrayEntity entity = new ByteArrayEntity(content);
+        entity.setContentType(contentType);
+        response.setEntity(entity);
+        response.setHeader("Content-Type", contentType);
+        response.setHeader("Last-Modified", "Mon, 01 Dec 2014 10:00:00 GMT");
+        return response;
+    }
+}
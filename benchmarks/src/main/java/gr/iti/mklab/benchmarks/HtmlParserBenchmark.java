@@ -0,0 +1,63 @@
+package gr.iti.mklab.benchmarks;
+
+import com.google.common.hash.Hashing;
+import gr.iti.mklab.bubing.parser.ITIHTMLParser;
+import it.unimi.di.law.bubing.parser.Parser;
+import org.apache.http.HttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses the fixture pages with {@link ITIHTMLParser}, with and without computing the page digest.
+ * <p/>
+ * <p>The benchmark runs with <samp>-Dreveal.imageRouting=frontier</samp>, so that the image URLs of a page go
+ * to the link receiver with the other links and no image is ever fetched.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dreveal.imageRouting=frontier")
+public class HtmlParserBenchmark {
+
+    @Param({"news-article.html", "photo-gallery.html", "forum-thread.html"})
+    public String page;
+
+    /**
+     * Whether the page digest is computed through {@link ITIHTMLParser.DigestAppendable}.
+     */
+    @Param({"true", "false"})
+    public boolean digest;
+
+    private ITIHTMLParser<Void> parser;
+    private ITIHTMLParser.SetLinkReceiver linkReceiver;
+    private URI uri;
+    private HttpResponse response;
+
+    @Setup
+    public void setup() throws IOException {
+        parser = new ITIHTMLParser<Void>(digest ? Hashing.md5() : null, (Parser.TextProcessor<Void>) null, false, ITIHTMLParser.CHAR_BUFFER_SIZE);
+        linkReceiver = new ITIHTMLParser.SetLinkReceiver();
+        uri = Fixtures.pageUri(page);
+        response = Fixtures.pageResponse(page);
+    }
+
+    @Benchmark
+    public byte[] parse() throws IOException {
+        return parser.parse(uri, response, linkReceiver);
+    }
+}
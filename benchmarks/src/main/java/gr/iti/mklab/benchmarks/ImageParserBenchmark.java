@@ -0,0 +1,73 @@
+package gr.iti.mklab.benchmarks;
+
+import gr.iti.mklab.bubing.parser.ITIHTMLParser;
+import gr.iti.mklab.bubing.parser.ImageParser;
+import it.unimi.di.law.bubing.parser.Parser;
+import org.apache.http.HttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses stored image responses with {@link ImageParser}: digesting, decoding and handing the image to the indexer.
+ * <p/>
+ * <p>Every invocation uses a new URL and a different digest (the bytes after the end of the encoded image change),
+ * so no image is skipped as already seen. The indexer runs without learning files and without near-duplicate
+ * detection, so images are dropped once handed over and only the work of the parser thread is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageParserBenchmark {
+
+    private static final int SLACK = 8;
+
+    @Param({"SMALL", "MEDIUM", "LARGE", "HUGE"})
+    public Fixtures.Size size;
+
+    @Param({"jpg", "png"})
+    public String format;
+
+    private ImageParser<Void> parser;
+    private Parser.LinkReceiver linkReceiver;
+    private byte[] content;
+    private HttpResponse response;
+    private long count;
+
+    @Setup
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        final File empty = new File("target", "benchmark-empty");
+        System.setProperty("reveal.learningFolder", empty.getPath());
+        System.setProperty("reveal.indexFolder", empty.getPath());
+        System.setProperty("reveal.nearDuplicateDistance", "-1");
+
+        parser = new ImageParser<Void>("MD5");
+        linkReceiver = new ITIHTMLParser.SetLinkReceiver();
+        content = Fixtures.encode(Fixtures.image(size), format, SLACK);
+        response = Fixtures.response(content, "jpg".equals(format) ? "image/jpeg" : "image/" + format);
+    }
+
+    @Benchmark
+    public byte[] parse() throws IOException {
+        final long n = count++;
+        for (int i = 0; i < SLACK; i++) content[content.length - SLACK + i] = (byte) (n >>> 8 * i);
+        return parser.parse(URI.create("http://img.example.com/" + n + "." + format), response, linkReceiver);
+    }
+}
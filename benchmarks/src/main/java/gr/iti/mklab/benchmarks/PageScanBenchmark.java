@@ -0,0 +1,79 @@
+package gr.iti.mklab.benchmarks;
+
+import gr.iti.mklab.bubing.parser.ITIHTMLParser;
+import gr.iti.mklab.image.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-page scans done besides parsing: the charset detection on the first bytes of a page
+ * ({@link ITIHTMLParser#getCharsetName(byte[], int)}, against the regular expressions it replaced in
+ * {@link RegexCharsetSniffer}) and the image URL check on each link
+ * ({@link Utils#isImageUrl(CharSequence)}). The links are collected with image routing set to
+ * <samp>frontier</samp>, so that parsing the page does not fetch its images.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dreveal.imageRouting=frontier")
+public class PageScanBenchmark {
+
+    /**
+     * The number of bytes BUbiNG keeps inspectable at the start of a response.
+     */
+    private static final int INSPECTABLE = 1024;
+
+    @Param({"news-article.html", "photo-gallery.html", "forum-thread.html"})
+    public String page;
+
+    private byte[] content;
+    private int length;
+    private String[] links;
+
+    @Setup
+    public void setup() throws IOException {
+        content = Fixtures.page(page);
+        length = Math.min(INSPECTABLE, content.length);
+        final ITIHTMLParser.SetLinkReceiver linkReceiver = new ITIHTMLParser.SetLinkReceiver();
+        new ITIHTMLParser<Void>().parse(Fixtures.pageUri(page), Fixtures.pageResponse(page), linkReceiver);
+        final List<String> urls = new ArrayList<String>();
+        for (URI link : linkReceiver.urls) urls.add(link.toString());
+        links = urls.toArray(new String[urls.size()]);
+    }
+
+    @Benchmark
+    public String getCharsetName() {
+        return ITIHTMLParser.getCharsetName(content, length);
+    }
+
+    @Benchmark
+    public String getCharsetNameRegex() {
+        return RegexCharsetSniffer.getCharsetName(content, length);
+    }
+
+    /**
+     * Checks all links of the page.
+     */
+    @Benchmark
+    public void isImageUrl(Blackhole blackhole) {
+        for (String link : links) blackhole.consume(Utils.isImageUrl(link));
+    }
+}
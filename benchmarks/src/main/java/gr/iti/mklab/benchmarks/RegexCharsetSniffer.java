@@ -0,0 +1,41 @@
+package gr.iti.mklab.benchmarks;
+
+import gr.iti.mklab.bubing.parser.ITIHTMLParser;
+import it.unimi.di.law.bubing.util.ByteArrayCharSequence;
+import it.unimi.dsi.util.TextPattern;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The charset detection that {@link ITIHTMLParser#getCharsetName(byte[], int)} used to do, kept as
+ * a baseline: it finds each <samp>&lt;meta</samp> and matches regular expressions against the tag,
+ * and knows neither byte-order marks nor the <samp>charset</samp> attribute.
+ */
+public class RegexCharsetSniffer {
+
+    private static final TextPattern META_PATTERN = new TextPattern("<meta", TextPattern.CASE_INSENSITIVE);
+    private static final Pattern HTTP_EQUIV_PATTERN = Pattern.compile(".*http-equiv\\s*=\\s*('|\")?content-type('|\")?.*", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CONTENT_PATTERN = Pattern.compile(".*content\\s*=\\s*('|\")([^'\"]*)('|\").*", Pattern.CASE_INSENSITIVE);
+
+    private RegexCharsetSniffer() {
+    }
+
+    public static String getCharsetName(final byte buffer[], final int length) {
+        int start = 0;
+        while ((start = META_PATTERN.search(buffer, start, length)) != -1) {
+            int end = start;
+            while (end < length && buffer[end] != '>') end++; // Look for closing '>'
+            if (end == length) return null; // No closing '>'
+
+            final ByteArrayCharSequence tagContent = new ByteArrayCharSequence(buffer, start + META_PATTERN.length(), end - start - META_PATTERN.length());
+            if (HTTP_EQUIV_PATTERN.matcher(tagContent).matches()) {
+                final Matcher m = CONTENT_PATTERN.matcher(tagContent);
+                if (m.matches()) return ITIHTMLParser.getCharsetNameFromHeader(m.group(2));
+            }
+
+            start = end + 1;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,26 @@
+package gr.iti.mklab.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, reporting both throughput and, through the JMH GC profiler, allocation rate
+ * (<samp>gc.alloc.rate.norm</samp> is the number of bytes allocated per operation).
+ * <p/>
+ * <p>It takes the usual JMH options, e.g. <samp>java -jar target/benchmarks.jar HtmlParser</samp> runs only
+ * the parser benchmarks. {@link VectorizationBenchmark} runs only when the learning files are given with
+ * <samp>-p learningFolder=FOLDER</samp>.
+ */
+public class RunBenchmarks {
+
+    public static void main(String arg[]) throws Exception {
+        final CommandLineOptions options = new CommandLineOptions(arg);
+        final ChainedOptionsBuilder builder = new OptionsBuilder().parent(options).addProfiler(GCProfiler.class);
+        if (!options.getParameter("learningFolder").hasValue())
+            builder.exclude(VectorizationBenchmark.class.getSimpleName());
+        new Runner(builder.build()).run();
+    }
+}
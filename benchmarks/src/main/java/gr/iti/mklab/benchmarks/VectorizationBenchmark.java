@@ -0,0 +1,63 @@
+package gr.iti.mklab.benchmarks;
+
+import gr.iti.mklab.image.ImageDecoder;
+import gr.iti.mklab.image.VisualIndexer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Vectorizes images of each size class with {@link VisualIndexer#vectorize(String, BufferedImage)}, as decoded by
+ * {@link ImageDecoder}. It needs the learning files: run it with <samp>-p learningFolder=FOLDER</samp>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class VectorizationBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE", "HUGE"})
+    public Fixtures.Size size;
+
+    /**
+     * The folder of the learning files.
+     */
+    @Param("")
+    public String learningFolder;
+
+    private VisualIndexer indexer;
+    private BufferedImage image;
+
+    @Setup
+    public void setup() throws Exception {
+        if (learningFolder.isEmpty())
+            throw new IllegalStateException("Vectorization needs the learning files: run with -p learningFolder=FOLDER");
+        System.setProperty("reveal.learningFolder", learningFolder);
+        System.setProperty("reveal.indexFolder", new File("target", "benchmark-index").getPath());
+
+        indexer = VisualIndexer.getInstance();
+        image = ImageDecoder.read(new ByteArrayInputStream(Fixtures.encode(Fixtures.image(size), "jpg", 0))).getImage();
+        if (indexer.vectorize("warmup", image) == null)
+            throw new IllegalStateException("Could not vectorize with the learning files in " + learningFolder);
+    }
+
+    @Benchmark
+    public double[] vectorize() throws Exception {
+        return indexer.vectorize("benchmark", image);
+    }
+}
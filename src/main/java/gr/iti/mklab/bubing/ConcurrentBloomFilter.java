@@ -0,0 +1,162 @@
+package gr.iti.mklab.bubing;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter that can be shared by many threads.
+ * <p/>
+ * <p>Bits are set with compare-and-swap, so concurrent insertions of different keys never lose updates;
+ * insertions of the same key are serialized by a lock chosen among {@link #STRIPES} according to the key hash,
+ * which makes {@link #claim(CharSequence)} an atomic check-and-insert: exactly one of the threads
+ * claiming a new key gets {@code true}.
+ * <p/>
+ * <p>The filter can be saved with {@link #save(File)} and restored with {@link #load(File)}.
+ */
+public class ConcurrentBloomFilter {
+
+    private static final int STRIPES = 1024;
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashFunctions;
+    private final Object[] locks = new Object[STRIPES];
+
+    /**
+     * Creates a filter.
+     *
+     * @param expectedInsertions the number of keys the filter is sized for.
+     * @param fpp                the false positive probability once {@code expectedInsertions} keys have been added.
+     */
+    public ConcurrentBloomFilter(long expectedInsertions, double fpp) {
+        this(optimalNumBits(Math.max(1, expectedInsertions), fpp), optimalNumHashFunctions(fpp));
+    }
+
+    private ConcurrentBloomFilter(long numBits, int numHashFunctions) {
+        final long words = (numBits + 63) / 64;
+        if (words > Integer.MAX_VALUE) throw new IllegalArgumentException("Bloom filter too large: " + numBits + " bits");
+        this.bits = new AtomicLongArray((int) words);
+        this.numBits = words * 64;
+        this.numHashFunctions = numHashFunctions;
+        for (int i = 0; i < STRIPES; i++) locks[i] = new Object();
+    }
+
+    private static long optimalNumBits(long n, double p) {
+        return Math.max(64, (long) (-n * Math.log(p) / (Math.log(2) * Math.log(2))));
+    }
+
+    private static int optimalNumHashFunctions(double p) {
+        return Math.max(1, (int) Math.round(-Math.log(p) / Math.log(2)));
+    }
+
+    /**
+     * Adds a key to the filter, unless it is already there.
+     *
+     * @return true if the key was not in the filter (and the caller has claimed it); false if it (probably) was.
+     */
+    public boolean claim(CharSequence key) {
+        return claimHash(HASH_FUNCTION.hashString(key, Charsets.UTF_8).asBytes());
+    }
+
+    /**
+     * Adds a byte key (e.g., a digest) to the filter, unless it is already there.
+     *
+     * @return true if the key was not in the filter (and the caller has claimed it); false if it (probably) was.
+     * @see #claim(CharSequence)
+     */
+    public boolean claim(byte[] key) {
+        return claimHash(HASH_FUNCTION.hashBytes(key).asBytes());
+    }
+
+    private boolean claimHash(byte[] hash) {
+        final long h1 = toLong(hash, 0), h2 = toLong(hash, 8);
+        synchronized (locks[(int) (h1 & (STRIPES - 1))]) {
+            if (contains(h1, h2)) return false;
+            long combined = h1;
+            for (int i = 0; i < numHashFunctions; i++) {
+                set((combined & Long.MAX_VALUE) % numBits);
+                combined += h2;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return true if the key is probably in the filter; false if it is certainly not.
+     */
+    public boolean mightContain(CharSequence key) {
+        final byte[] hash = HASH_FUNCTION.hashString(key, Charsets.UTF_8).asBytes();
+        return contains(toLong(hash, 0), toLong(hash, 8));
+    }
+
+    private boolean contains(long h1, long h2) {
+        long combined = h1;
+        for (int i = 0; i < numHashFunctions; i++) {
+            final long index = (combined & Long.MAX_VALUE) % numBits;
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) return false;
+            combined += h2;
+        }
+        return true;
+    }
+
+    private void set(long index) {
+        final int word = (int) (index >>> 6);
+        final long mask = 1L << index;
+        for (long value; ((value = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, value, value | mask); ) ;
+    }
+
+    private static long toLong(byte[] b, int offset) {
+        long l = 0;
+        for (int i = 7; i >= 0; i--) l = l << 8 | (b[offset + i] & 0xFF);
+        return l;
+    }
+
+    /**
+     * @return the size of the filter in bits.
+     */
+    public long bitSize() {
+        return numBits;
+    }
+
+    /**
+     * Saves a snapshot of the filter. Keys claimed while saving may or may not be part of the snapshot.
+     */
+    public void save(File file) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            dos.writeLong(numBits);
+            dos.writeInt(numHashFunctions);
+            final int length = bits.length();
+            for (int i = 0; i < length; i++) dos.writeLong(bits.get(i));
+        } finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * Restores a filter saved with {@link #save(File)}.
+     */
+    public static ConcurrentBloomFilter load(File file) throws IOException {
+        final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            final ConcurrentBloomFilter filter = new ConcurrentBloomFilter(dis.readLong(), dis.readInt());
+            final int length = filter.bits.length();
+            for (int i = 0; i < length; i++) filter.bits.set(i, dis.readLong());
+            return filter;
+        } finally {
+            dis.close();
+        }
+    }
+}
@@ -1,22 +1,227 @@
 package gr.iti.mklab.bubing;
 
-import com.google.common.hash.BloomFilter;
-import com.google.common.hash.Funnels;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import gr.iti.mklab.image.PipelineStats;
+import gr.iti.mklab.image.SearchService;
 import gr.iti.mklab.image.VisualIndexer;
 import it.unimi.di.law.bubing.Agent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.nio.charset.Charset;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
 
 /**
  * Created by kandreadou on 12/9/14.
  */
 public class ItiAgent {
 
-    public final static BloomFilter<String> UNIQUE_IMAGE_URLS = BloomFilter.create(Funnels.stringFunnel(Charset.forName("UTF-8")), 100000);
+    private static final Logger LOGGER = LoggerFactory.getLogger(ItiAgent.class);
 
+    /**
+     * The false positive probability of {@link #uniqueImageUrls()} once it is full (<samp>-Dreveal.imageUrlPrecision</samp>).
+     */
+    public static final double IMAGE_URL_PRECISION = Double.parseDouble(System.getProperty("reveal.imageUrlPrecision", "1E-3"));
+    /**
+     * The false positive probability of {@link #uniqueImageContents()} once it is full (<samp>-Dreveal.imageContentPrecision</samp>).
+     * A false positive drops an image for good, and the filter holds far fewer keys than the URL one, so it is tighter.
+     */
+    public static final double IMAGE_CONTENT_PRECISION = Double.parseDouble(System.getProperty("reveal.imageContentPrecision", "1E-4"));
+    /**
+     * The name of the file, inside the crawl <samp>rootDir</samp>, where {@link #uniqueImageUrls()} is saved at shutdown.
+     */
+    public static final String IMAGE_URL_FILTER_FILE = "image-urls.bloom";
+    /**
+     * The name of the file, inside the crawl <samp>rootDir</samp>, where {@link #uniqueImageContents()} is saved at shutdown.
+     */
+    public static final String IMAGE_CONTENT_FILTER_FILE = "image-contents.bloom";
+    /**
+     * The crawl property giving the number of image URLs {@link #uniqueImageUrls()} is sized for, with BUbiNG's
+     * suffixes (e.g. <samp>50M</samp>); {@link #DEFAULT_EXPECTED_IMAGE_URLS} if missing.
+     * <p/>
+     * <p>The filter is allocated at startup, whatever the size the crawl eventually reaches: at the default precision
+     * it takes about 1.8 bytes per URL, i.e., 17 MiB for the default and 860 MiB for 500M URLs.
+     */
+    public static final String IMAGE_URL_FILTER_SIZE = "reveal.imageUrlFilterSize";
+    /**
+     * The crawl property giving the number of image contents {@link #uniqueImageContents()} is sized for;
+     * {@link #DEFAULT_EXPECTED_IMAGES} if missing. At the default precision the filter takes about 2.4 bytes per image,
+     * i.e., 23 MiB for the default.
+     */
+    public static final String IMAGE_CONTENT_FILTER_SIZE = "reveal.imageContentFilterSize";
+    /**
+     * The prefix of the crawl properties read by the agent, which are not passed to BUbiNG.
+     */
+    private static final String PROPERTY_PREFIX = "reveal.";
+    /**
+     * The number of image URLs the filter is sized for by default.
+     */
+    public static final long DEFAULT_EXPECTED_IMAGE_URLS = 10000000;
+    /**
+     * The number of image contents the filter is sized for by default. Only images passing the header checks reach
+     * the filter, a small fraction of the URLs of a crawl.
+     */
+    public static final long DEFAULT_EXPECTED_IMAGES = 10000000;
+
+    private static ConcurrentBloomFilter uniqueImageUrls;
+    private static ConcurrentBloomFilter uniqueImageContents;
+
+    /**
+     * Returns the filter of the image URLs already processed, shared by all parsers.
+     */
+    public static synchronized ConcurrentBloomFilter uniqueImageUrls() {
+        if (uniqueImageUrls == null)
+            uniqueImageUrls = new ConcurrentBloomFilter(DEFAULT_EXPECTED_IMAGE_URLS, IMAGE_URL_PRECISION);
+        return uniqueImageUrls;
+    }
+
+    /**
+     * Returns the filter of the digests of the image contents already processed, shared by all parsers.
+     */
+    public static synchronized ConcurrentBloomFilter uniqueImageContents() {
+        if (uniqueImageContents == null)
+            uniqueImageContents = new ConcurrentBloomFilter(DEFAULT_EXPECTED_IMAGES, IMAGE_CONTENT_PRECISION);
+        return uniqueImageContents;
+    }
 
     public static void main( final String arg[] ) throws Exception {
-        VisualIndexer.getInstance();
+        final int propertiesArgument = propertiesArgument(arg);
+        final File propertiesFile = propertiesArgument < 0 ? null : new File(propertiesFile(arg[propertiesArgument]));
+        final Properties properties = crawlProperties(propertiesFile);
+        final ConcurrentBloomFilter urls = setupFilter(properties, IMAGE_URL_FILTER_FILE,
+                size(properties, IMAGE_URL_FILTER_SIZE, DEFAULT_EXPECTED_IMAGE_URLS), IMAGE_URL_PRECISION);
+        final ConcurrentBloomFilter contents = setupFilter(properties, IMAGE_CONTENT_FILTER_FILE,
+                size(properties, IMAGE_CONTENT_FILTER_SIZE, DEFAULT_EXPECTED_IMAGES), IMAGE_CONTENT_PRECISION);
+        synchronized (ItiAgent.class) {
+            uniqueImageUrls = urls;
+            uniqueImageContents = contents;
+        }
+        PipelineStats.getInstance().register();
+        final VisualIndexer indexer = VisualIndexer.getInstance();
+        if (SearchService.PORT > 0) new SearchService(indexer, SearchService.PORT).start();
+        // BUbiNG accepts only its own properties
+        if (propertiesFile != null) {
+            final File bubingProperties = withoutAgentProperties(propertiesFile);
+            if (bubingProperties != propertiesFile) {
+                final String value = bubingProperties.getPath();
+                arg[propertiesArgument] = arg[propertiesArgument].startsWith("--properties=") ? "--properties=" + value : value;
+            }
+        }
         Agent.main(arg);
     }
+
+    private static long size(final Properties properties, final String key, final long defaultValue) {
+        final String value = properties.getProperty(key);
+        return value == null ? defaultValue : parseSize(value);
+    }
+
+    /**
+     * Creates an image filter, restoring it from the snapshot of a previous run if there is one, and saves it at shutdown.
+     *
+     * @param expected  the number of keys the filter is sized for, if it is created.
+     * @param precision the false positive probability of the filter once it is full, if it is created.
+     */
+    private static ConcurrentBloomFilter setupFilter(final Properties properties, final String fileName, final long expected, final double precision) throws IOException {
+        final File snapshot = new File(properties.getProperty("rootDir", "."), fileName);
+        final ConcurrentBloomFilter filter;
+        if (snapshot.exists()) {
+            filter = ConcurrentBloomFilter.load(snapshot);
+            LOGGER.info("Restored image filter from {}", snapshot);
+        } else {
+            filter = new ConcurrentBloomFilter(expected, precision);
+            LOGGER.info("Image filter {} sized for {} keys ({} MiB)", fileName, expected, filter.bitSize() >>> 23);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread("ItiAgent-shutdown") {
+            @Override
+            public void run() {
+                try {
+                    if (snapshot.getAbsoluteFile().getParentFile().isDirectory()) filter.save(snapshot);
+                } catch (IOException e) {
+                    LOGGER.error("Could not save the image filter to " + snapshot, e);
+                }
+            }
+        });
+        return filter;
+    }
+
+    /**
+     * @return the index of the argument naming the BUbiNG properties file given with <samp>-P</samp>/<samp>--properties</samp>,
+     * or -1.
+     */
+    private static int propertiesArgument(final String arg[]) {
+        int index = -1;
+        for (int i = 0; i < arg.length; i++) {
+            if (("-P".equals(arg[i]) || "--properties".equals(arg[i])) && i + 1 < arg.length) index = ++i;
+            else if (arg[i].startsWith("--properties=")) index = i;
+        }
+        return index;
+    }
+
+    private static String propertiesFile(final String argument) {
+        return argument.startsWith("--properties=") ? argument.substring("--properties=".length()) : argument;
+    }
+
+    /**
+     * Loads the BUbiNG properties file, if any.
+     */
+    private static Properties crawlProperties(final File file) throws IOException {
+        final Properties properties = new Properties();
+        if (file != null) {
+            final InputStream is = new FileInputStream(file);
+            try {
+                properties.load(is);
+            } finally {
+                is.close();
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Copies a properties file without the properties of the agent, keeping the rest of it as it is (BUbiNG reads
+     * escapes differently from {@link Properties}).
+     *
+     * @return the copy, deleted on exit, or the file itself if it has no properties of the agent.
+     */
+    private static File withoutAgentProperties(final File file) throws IOException {
+        final List<String> lines = Files.readLines(file, Charsets.ISO_8859_1);
+        final StringBuilder copy = new StringBuilder();
+        boolean continued = false, skipping = false, skipped = false;
+        for (String line : lines) {
+            if (!continued) skipping = line.trim().startsWith(PROPERTY_PREFIX);
+            if (skipping) skipped = true;
+            else copy.append(line).append('\n');
+            // a line ending with an odd number of backslashes goes on with the next one
+            int backslashes = 0;
+            while (backslashes < line.length() && line.charAt(line.length() - 1 - backslashes) == '\\') backslashes++;
+            continued = backslashes % 2 == 1;
+        }
+        if (!skipped) return file;
+        final File bubingProperties = File.createTempFile("bubing-", ".properties");
+        bubingProperties.deleteOnExit();
+        Files.write(copy, bubingProperties, Charsets.ISO_8859_1);
+        return bubingProperties;
+    }
+
+    /**
+     * Parses a size such as <samp>500M</samp> or <samp>128Mi</samp>, with the same suffixes as BUbiNG.
+     */
+    private static long parseSize(String s) {
+        s = s.trim();
+        long multiplier = 1;
+        final boolean binary = s.endsWith("i");
+        if (binary) s = s.substring(0, s.length() - 1);
+        final char unit = s.isEmpty() ? ' ' : Character.toUpperCase(s.charAt(s.length() - 1));
+        final int power = "KMGTP".indexOf(unit) + 1;
+        if (power > 0) {
+            s = s.substring(0, s.length() - 1);
+            for (int i = 0; i < power; i++) multiplier *= binary ? 1024 : 1000;
+        }
+        return Long.parseLong(s.trim()) * multiplier;
+    }
 }
@@ -19,15 +19,14 @@ package gr.iti.mklab.bubing.parser;
  */
 
 import gr.iti.mklab.bubing.ItiAgent;
+import gr.iti.mklab.image.ImageFetcher;
+import gr.iti.mklab.image.ImageYield;
+import gr.iti.mklab.image.PipelineStats;
 import gr.iti.mklab.image.Utils;
-import gr.iti.mklab.image.VisualIndexer;
-import gr.iti.mklab.simmo.items.Image;
-import gr.iti.mklab.visual.utilities.ImageIOGreyScale;
 import it.unimi.di.law.bubing.Agent;
 import it.unimi.di.law.bubing.parser.BinaryParser;
 import it.unimi.di.law.bubing.parser.Parser;
 import it.unimi.di.law.bubing.util.BURL;
-import it.unimi.di.law.bubing.util.ByteArrayCharSequence;
 import it.unimi.di.law.bubing.util.Util;
 import it.unimi.di.law.warc.filters.URIResponse;
 import it.unimi.di.law.warc.records.WarcHeader;
@@ -40,7 +39,6 @@ import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
 import it.unimi.dsi.lang.ObjectParser;
 import it.unimi.dsi.util.TextPattern;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -48,15 +46,12 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
-import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLConnection;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -82,7 +77,6 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.HttpClients;
-import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -98,8 +92,6 @@ import com.martiansoftware.jsap.SimpleJSAP;
 import com.martiansoftware.jsap.Switch;
 import com.martiansoftware.jsap.UnflaggedOption;
 
-import javax.imageio.ImageIO;
-
 // RELEASE-STATUS: DIST
 
 /**
@@ -184,6 +176,9 @@ public class ITIHTMLParser<T> implements Parser<T> {
      * <p/>
      * <p>To avoid clashes between digests coming from different sites, you can optionally set a URL
      * (passed to the {@link #init(URI)} method) whose scheme+authority will be used to update the digest before adding the actual text page.
+     * <p/>
+     * <p>Normalized characters are accumulated, as little-endian byte pairs (the encoding of {@link Hasher#putChar(char)}),
+     * in a block that is passed to the hasher in bulk; the digest is the same as if each character was put separately.
      */
     public final static class DigestAppendable implements Appendable {
         private static final boolean DEBUG = false;
@@ -200,7 +195,20 @@ public class ITIHTMLParser<T> implements Parser<T> {
          */
         protected static final Reference2ObjectOpenHashMap<String, byte[]> endTags;
 
+        /**
+         * The number of characters accumulated before being passed to the hasher.
+         */
+        private static final int BLOCK_SIZE = 4096;
+
+        /**
+         * For each ASCII character, whether it is a whitespace or a digit.
+         */
+        private static final boolean[] ASCII_SPACE_OR_DIGIT = new boolean[128];
+
         static {
+            for (char c = 0; c < ASCII_SPACE_OR_DIGIT.length; c++)
+                ASCII_SPACE_OR_DIGIT[c] = Character.isWhitespace(c) || Character.isDigit(c);
+
             final List<String> elementNames = HTMLElements.getElementNames();
             startTags = new Reference2ObjectOpenHashMap<String, byte[]>(elementNames.size());
             endTags = new Reference2ObjectOpenHashMap<String, byte[]>(elementNames.size());
@@ -232,6 +240,14 @@ public class ITIHTMLParser<T> implements Parser<T> {
          * The last returne digest, or {@code null} if {@link #init(URI)} has been called but {@link #digest()} hasn't.
          */
         protected byte[] digest;
+        /**
+         * The bytes not yet passed to the hasher: normalized characters, as little-endian byte pairs, and tags.
+         */
+        private final byte[] block = new byte[2 * BLOCK_SIZE];
+        /**
+         * The number of bytes in {@link #block}.
+         */
+        private int blockLength;
 
 
         /**
@@ -257,6 +273,7 @@ public class ITIHTMLParser<T> implements Parser<T> {
         public void init(final URI url) {
             hasher = hashFunction.newHasher();
             digest = null;
+            blockLength = 0;
 
             if (url != null) {
                 // Note that we need to go directly to the hasher to encode explicit IP addresses
@@ -267,26 +284,56 @@ public class ITIHTMLParser<T> implements Parser<T> {
             lastAppendedWasSpace = false;
         }
 
+        private static boolean isSpaceOrDigit(final char c) {
+            return c < 128 ? ASCII_SPACE_OR_DIGIT[c] : Character.isWhitespace(c) || Character.isDigit(c);
+        }
+
+        /**
+         * Passes the accumulated characters to the hasher.
+         */
+        private void flush() {
+            if (blockLength != 0) {
+                hasher.putBytes(block, 0, blockLength);
+                blockLength = 0;
+            }
+        }
+
         @Override
         public Appendable append(CharSequence csq, int start, int end) {
-            // Hopefully this will soon be inlined by the jvm: no need to duplicate the code! :-)
-            for (int i = start; i < end; i++) append(csq.charAt(i));
+            final byte[] block = this.block;
+            int length = blockLength;
+            boolean lastWasSpace = lastAppendedWasSpace;
+            for (int i = start; i < end; i++) {
+                char c = csq.charAt(i);
+                if (isSpaceOrDigit(c)) {
+                    if (lastWasSpace) continue;
+                    c = ' ';
+                    lastWasSpace = true;
+                } else lastWasSpace = false;
+                if (length > block.length - 2) {
+                    hasher.putBytes(block, 0, length);
+                    length = 0;
+                }
+                block[length++] = (byte) c;
+                block[length++] = (byte) (c >>> 8);
+                if (DEBUG) debugStream.append(c);
+            }
+            blockLength = length;
+            lastAppendedWasSpace = lastWasSpace;
             return this;
         }
 
         @Override
         public Appendable append(char c) {
-            if (Character.isWhitespace(c) || Character.isDigit(c)) {
-                if (!lastAppendedWasSpace) {
-                    hasher.putChar(' ');
-                    if (DEBUG) debugStream.append(' ');
-                    lastAppendedWasSpace = true;
-                }
-            } else {
-                hasher.putChar(c);
-                if (DEBUG) debugStream.append(c);
-                lastAppendedWasSpace = false;
-            }
+            if (isSpaceOrDigit(c)) {
+                if (lastAppendedWasSpace) return this;
+                c = ' ';
+                lastAppendedWasSpace = true;
+            } else lastAppendedWasSpace = false;
+            if (blockLength > block.length - 2) flush();
+            block[blockLength++] = (byte) c;
+            block[blockLength++] = (byte) (c >>> 8);
+            if (DEBUG) debugStream.append(c);
             return this;
         }
 
@@ -296,12 +343,20 @@ public class ITIHTMLParser<T> implements Parser<T> {
         }
 
         private void append(byte[] a) {
-            hasher.putBytes(a);
+            if (blockLength + a.length > block.length) flush();
+            if (a.length > block.length) hasher.putBytes(a);
+            else {
+                System.arraycopy(a, 0, block, blockLength, a.length);
+                blockLength += a.length;
+            }
             if (DEBUG) for (byte b : a) debugStream.append((char) b);
         }
 
         public byte[] digest() {
-            if (digest == null) digest = hasher.hash().asBytes();
+            if (digest == null) {
+                flush();
+                digest = hasher.hash().asBytes();
+            }
             return digest;
         }
 
@@ -335,6 +390,28 @@ public class ITIHTMLParser<T> implements Parser<T> {
      * The size of the internal Jericho buffer.
      */
     public static final int CHAR_BUFFER_SIZE = 128 * 1024;
+    /**
+     * The name of the <samp>PICTURE</samp> element, which Jericho does not know.
+     */
+    private static final String PICTURE = "picture";
+    /**
+     * How the images found in pages are downloaded (<samp>-Dreveal.imageRouting</samp>): <samp>inline</samp> hands
+     * them over to the {@link ImageFetcher}, <samp>frontier</samp> passes their URLs to the link receiver, so that
+     * BUbiNG fetches them like any other URL and {@link ImageParser} indexes them.
+     * <p/>
+     * <p>With <samp>frontier</samp> the crawl configuration must let images through: the schedule filter must accept
+     * their URLs and the parse filter their content type, and <samp>parserSpec</samp> must include {@link ImageParser}.
+     * Images are then subject to BUbiNG's politeness and per-host limits, and the page and alternative text of an image
+     * are not known when it is indexed.
+     */
+    public static final String IMAGE_ROUTING = System.getProperty("reveal.imageRouting", "inline");
+    private static final boolean FRONTIER_ROUTING = frontierRouting(IMAGE_ROUTING);
+
+    private static boolean frontierRouting(String routing) {
+        if ("inline".equals(routing)) return false;
+        if ("frontier".equals(routing)) return true;
+        throw new IllegalArgumentException("Unknown image routing " + routing);
+    }
 
     /**
      * The character buffer. It is set up at construction time, but it can be changed later.
@@ -364,6 +441,10 @@ public class ITIHTMLParser<T> implements Parser<T> {
      * If <code>true</code>, pages with the same content but with different authorities are considered duplicates.
      */
     protected boolean crossAuthorityDuplicates;
+    /**
+     * The candidate URLs of the image being parsed.
+     */
+    protected final ImageCandidates imageCandidates = new ImageCandidates();
 
     /**
      * Builds a parser for link extraction and, possibly, digesting a page. By default, only pages from within the same
@@ -469,62 +550,46 @@ public class ITIHTMLParser<T> implements Parser<T> {
         if (url == null) return;
         if (checkImage && Utils.isImageUrl(s)) {
             try {
-                processImageURL(url, base, s, text);
+                processImageURL(linkReceiver, url, base, s, text);
             } catch (Exception ex) {
             }
         } else
             linkReceiver.link(base.resolve(url));
     }
 
-    public void processImageURL(URI pageUri, URI base, String imageUri, String altText) throws MalformedURLException, IOException {
+    /**
+     * Hands an image found in the page over to the {@link ImageFetcher}, unless it has been seen before.
+     * The image is downloaded and indexed asynchronously, so this method returns immediately; its URL is claimed
+     * by the fetcher when the download starts.
+     * <p/>
+     * <p>If {@link #IMAGE_ROUTING} is <samp>frontier</samp>, the image URL is passed to the link receiver instead,
+     * and {@link ImageParser} claims it when BUbiNG fetches it. In both cases images whose host
+     * rarely yields acceptable images are skipped, as decided by {@link ImageYield}.
+     *
+     * @param linkReceiver the link receiver of the page.
+     * @param pageUri  the URL of the page containing the image.
+     * @param base     the base URL to be used to derelativize the image URL.
+     * @param imageUri the raw image URL.
+     * @param altText  the alternative text of the image, or {@code null}.
+     */
+    public void processImageURL(LinkReceiver linkReceiver, URI pageUri, URI base, String imageUri, String altText) {
 
         URI url = BURL.parse(imageUri);
         if (url != null) {
             URI resolved = base.resolve(url);
-            String resolvedStr = resolved.toString();
-            //avoid trying to index the same image multiple times
-            if(!ItiAgent.UNIQUE_IMAGE_URLS.mightContain(resolvedStr)){
-                // Put it in the bloom filter even if it is not saved eventually
-                // to avoid doing the same checks for the same image a second time
-                ItiAgent.UNIQUE_IMAGE_URLS.put(resolvedStr);
-
-                final URLConnection con = resolved.toURL().openConnection();
-
-                if (Utils.checkContentHeaders(con.getContentLength(), con.getContentType())) {
-
-                    InputStream is = con.getInputStream();
-
-                    BufferedImage image = null;
-                    try {
-                        image = ImageIO.read(is);
-                    } catch (IllegalArgumentException e) {
-                        // this exception is probably thrown because of a greyscale jpeg image
-                        System.out.println("Exception: " + e.getMessage() + " | Image: " + imageUri);
-                        image = ImageIOGreyScale.read(is); // retry with the modified class
-                    } catch (MalformedURLException e) {
-                        System.out.println("Malformed url exception. Url: " + imageUri);
-                    }
-
-                    if (Utils.checkImage(image)) {
-
-                        Image item = new Image();
-                        item.setUrl(resolvedStr);
-                        item.setTitle(altText);
-                        item.setWidth(image.getWidth());
-                        item.setHeight(image.getHeight());
-                        item.setWebPageUrl(pageUri.toString());
-                        item.setLastModifiedDate(new Date(con.getLastModified()));
-                        item.setObjectId(new ObjectId());
-
-                        try {
-                            VisualIndexer.getInstance().indexAndStore(image, item);
-                        } catch (Exception e) {
-                            System.out.println("HTMLImageParser parse exeption: " + e);
-                        }
-
-                    }
-                }
+            if (!ImageYield.getInstance().admit(resolved)) return;
+            if (FRONTIER_ROUTING) {
+                linkReceiver.link(resolved);
+                return;
             }
+            //avoid trying to index the same image multiple times
+            // The URL is claimed by the fetcher when the download starts, even if the image is not saved eventually,
+            // to avoid doing the same checks for the same image a second time
+            final PipelineStats stats = PipelineStats.getInstance();
+            stats.increment(PipelineStats.Counter.IMAGE_URLS);
+            if (!ItiAgent.uniqueImageUrls().mightContain(resolved.toString())) {
+                ImageFetcher.getInstance().submit(resolved, pageUri, altText);
+            } else stats.increment(PipelineStats.Counter.URL_DUPLICATES);
         }
     }
 
@@ -600,6 +665,8 @@ public class ITIHTMLParser<T> implements Parser<T> {
 
         int lastSegmentEnd = 0;
         int inSpecialText = 0;
+        boolean inPicture = false;
+        imageCandidates.clear();
         for (Segment segment : streamedSource) {
             if (segment.getEnd() > lastSegmentEnd) {
                 lastSegmentEnd = segment.getEnd();
@@ -618,8 +685,22 @@ public class ITIHTMLParser<T> implements Parser<T> {
                     // IFRAME or FRAME + SRC
                     if (name == HTMLElementName.IFRAME || name == HTMLElementName.FRAME || name == HTMLElementName.EMBED)
                         process(linkReceiver, base, startTag.getAttributeValue("src"), startTag.getAttributeValue("name"), true);
-                    else if (name == HTMLElementName.IMG){
-                        processImageURL(uri, base, startTag.getAttributeValue("src"), startTag.getAttributeValue("alt"));
+                    else if (name == HTMLElementName.IMG) {
+                        // one fetch per image, of the variant most likely to be large enough
+                        imageCandidates.addImage(startTag);
+                        final String candidate = imageCandidates.select();
+                        if (candidate != null)
+                            processImageURL(linkReceiver, uri, base, candidate, startTag.getAttributeValue("alt"));
+                        else if (!imageCandidates.isEmpty())
+                            PipelineStats.getInstance().increment(PipelineStats.Counter.REJECTED_CANDIDATES);
+                        imageCandidates.clear();
+                    }
+                    else if (name == HTMLElementName.SOURCE) {
+                        if (inPicture) imageCandidates.addSource(startTag);
+                    }
+                    else if (name.equals(PICTURE)) {
+                        inPicture = true;
+                        imageCandidates.clear();
                     }
                     else if (name == HTMLElementName.SCRIPT)
                         process(linkReceiver, base, startTag.getAttributeValue("src"), null, false);
@@ -679,6 +760,10 @@ public class ITIHTMLParser<T> implements Parser<T> {
                     if (name == HTMLElementName.STYLE || name == HTMLElementName.SCRIPT) {
                         inSpecialText = Math.max(0, inSpecialText - 1); // Ignore extra closing tags
                     }
+                    else if (name.equals(PICTURE)) {
+                        inPicture = false;
+                        imageCandidates.clear();
+                    }
 
                     if (digestAppendable != null) {
                         if (endTag.getTagType() != EndTagType.NORMAL) continue;
@@ -727,34 +812,40 @@ public class ITIHTMLParser<T> implements Parser<T> {
     }
 
     /**
-     * Used by {@link #getCharsetName(byte[], int)}.
-     */
-    protected static final TextPattern META_PATTERN = new TextPattern("<meta", TextPattern.CASE_INSENSITIVE);
-    /**
-     * Used by {@link #getCharsetName(byte[], int)}.
-     */
-    protected static final Pattern HTTP_EQUIV_PATTERN = Pattern.compile(".*http-equiv\\s*=\\s*('|\")?content-type('|\")?.*", Pattern.CASE_INSENSITIVE);
-    /**
-     * Used by {@link #getCharsetName(byte[], int)}.
+     * Used by {@link #getCharsetNameFromHeader(String)}.
      */
-    protected static final Pattern CONTENT_PATTERN = Pattern.compile(".*content\\s*=\\s*('|\")([^'\"]*)('|\").*", Pattern.CASE_INSENSITIVE);
+    protected static final Pattern CHARSET_PATTERN = Pattern.compile(".*charset\\s*=\\s*(([\\041-\\0176&&[^<>\\{\\}\\\\/:,;@?=]])+|\"[^\"]*\").*", Pattern.CASE_INSENSITIVE);
+
+    private static final byte[] META = {'m', 'e', 't', 'a'};
+    private static final byte[] HTTP_EQUIV = {'h', 't', 't', 'p', '-', 'e', 'q', 'u', 'i', 'v'};
+    private static final byte[] CONTENT_TYPE = {'c', 'o', 'n', 't', 'e', 'n', 't', '-', 't', 'y', 'p', 'e'};
+    private static final byte[] CONTENT = {'c', 'o', 'n', 't', 'e', 'n', 't'};
+    private static final byte[] CHARSET = {'c', 'h', 'a', 'r', 's', 'e', 't'};
+    private static final byte[] SCRIPT = {'s', 'c', 'r', 'i', 'p', 't'};
+    private static final byte[] STYLE = {'s', 't', 'y', 'l', 'e'};
+
     /**
-     * Used by {@link #getCharsetName(byte[], int)}.
+     * Whether an ASCII character may appear in a charset name (the same characters as in {@link #CHARSET_PATTERN}).
      */
-    protected static final Pattern CHARSET_PATTERN = Pattern.compile(".*charset\\s*=\\s*(([\\041-\\0176&&[^<>\\{\\}\\\\/:,;@?=]])+|\"[^\"]*\").*", Pattern.CASE_INSENSITIVE);
+    private static final boolean[] CHARSET_CHAR = new boolean[128];
+
+    static {
+        for (int c = '!'; c <= '~'; c++) CHARSET_CHAR[c] = true;
+        for (char c : "<>{}\\/:,;@?=\"'".toCharArray()) CHARSET_CHAR[c] = false;
+    }
 
     /**
-     * Returns the charset name as indicated by a <samp>META</samp>
-     * <samp>HTTP-EQUIV</samp> element, if
-     * present, interpreting the provided byte array as a sequence of
-     * ISO-8859-1-encoded characters. Only the first such occurrence is considered (even if
-     * it might not correspond to a valid or available charset).
+     * Returns the charset name as indicated by a byte-order mark or by the first
+     * <samp>META</samp> element declaring it, either with a <samp>charset</samp>
+     * attribute (HTML5) or with <samp>http-equiv="content-type"</samp> and a
+     * <samp>content</samp> attribute, interpreting the provided byte array as a sequence of
+     * ISO-8859-1-encoded characters. The charset might not be valid or available.
      * <p/>
-     * <p><strong>Beware</strong>: it might not work if the
-     * <em>value</em> of some attribute in a <code>meta</code> tag
-     * contains a string matching (case insensitively) the r.e.
-     * <code>http-equiv\s*=\s*('|")content-type('|")</code>, or
-     * <code>content\s*=\s*('|")[^"']*('|")</code>.
+     * <p>The buffer is scanned once, tag by tag, as in the prescan of the HTML5 encoding
+     * sniffing algorithm: comments, doctypes and the content of <samp>SCRIPT</samp> and
+     * <samp>STYLE</samp> elements are skipped, and each tag is skipped up to its closing
+     * <samp>&gt;</samp>, so that attribute values, quoted or not, are never mistaken for
+     * tags or attribute names. No object is allocated but the returned name.
      *
      * @param buffer a buffer containing raw bytes that will be interpreted as ISO-8859-1 characters.
      * @param length the number of significant bytes in the buffer.
@@ -762,27 +853,184 @@ public class ITIHTMLParser<T> implements Parser<T> {
      * charset is specified; note that the charset might be not valid or not available.
      */
     public static String getCharsetName(final byte buffer[], final int length) {
-        int start = 0;
-        while ((start = META_PATTERN.search(buffer, start, length)) != -1) {
+        if (length >= 3 && buffer[0] == (byte) 0xEF && buffer[1] == (byte) 0xBB && buffer[2] == (byte) 0xBF) return "UTF-8";
+        if (length >= 2 && buffer[0] == (byte) 0xFE && buffer[1] == (byte) 0xFF) return "UTF-16BE";
+        if (length >= 2 && buffer[0] == (byte) 0xFF && buffer[1] == (byte) 0xFE) return "UTF-16LE";
+
+        for (int i = 0; (i = indexOfLessThan(buffer, i, length)) != -1; ) {
+            if (i + 3 < length && buffer[i + 1] == '!' && buffer[i + 2] == '-' && buffer[i + 3] == '-') {
+                // Skip the comment; the two dashes opening it may also close it, as in <!-->
+                i += 2;
+                while (i + 2 < length && (buffer[i] != '-' || buffer[i + 1] != '-' || buffer[i + 2] != '>')) i++;
+                i += 3;
+                continue;
+            }
+            if (!(i + 5 < length && equalsIgnoreCase(buffer, i + 1, i + 5, META) && (isSpace(buffer[i + 5]) || buffer[i + 5] == '/'))) {
+                final boolean endTag = i + 1 < length && buffer[i + 1] == '/';
+                int p = endTag ? i + 2 : i + 1;
+                if (p < length && isAsciiLetter(buffer[p])) {
+                    final int nameStart = p;
+                    while (p < length && buffer[p] != '>' && buffer[p] != '/' && !isSpace(buffer[p])) p++;
+                    final int nameEnd = p;
+                    i = skipTag(buffer, p, length);
+                    if (!endTag && equalsIgnoreCase(buffer, nameStart, nameEnd, SCRIPT)) i = skipRawText(buffer, i, length, SCRIPT);
+                    else if (!endTag && equalsIgnoreCase(buffer, nameStart, nameEnd, STYLE)) i = skipRawText(buffer, i, length, STYLE);
+                } else if (endTag || p < length && (buffer[p] == '!' || buffer[p] == '?')) {
+                    // a doctype, a processing instruction or a bogus comment, up to the next '>'
+                    while (p < length && buffer[p] != '>') p++;
+                    i = p + 1;
+                } else i++; // not markup
+                continue;
+            }
 
-			/* Look for attribute http-equiv with value content-type,
-             * if present, look for attribute content and, if present,
-			 * return its value. */
+            boolean httpEquiv = false;
+            int contentStart = -1, contentEnd = -1, charsetStart = -1, charsetEnd = -1;
+            int p = i + 5;
+            for (; ; ) {
+                while (p < length && (isSpace(buffer[p]) || buffer[p] == '/')) p++;
+                if (p == length) return null; // No closing '>'
+                if (buffer[p] == '>') break;
+
+                final int nameStart = p;
+                while (p < length && buffer[p] != '=' && buffer[p] != '>' && buffer[p] != '/' && !isSpace(buffer[p])) p++;
+                final int nameEnd = p;
+                while (p < length && isSpace(buffer[p])) p++;
+                int valueStart = p, valueEnd = p;
+                if (p < length && buffer[p] == '=') {
+                    p++;
+                    while (p < length && isSpace(buffer[p])) p++;
+                    if (p == length) return null;
+                    final byte quote = buffer[p];
+                    if (quote == '"' || quote == '\'') {
+                        valueStart = ++p;
+                        while (p < length && buffer[p] != quote) p++;
+                        if (p == length) return null;
+                        valueEnd = p++;
+                    } else {
+                        valueStart = p;
+                        while (p < length && buffer[p] != '>' && !isSpace(buffer[p])) p++;
+                        valueEnd = p;
+                    }
+                }
 
-            int end = start;
-            while (end < length && buffer[end] != '>') end++; // Look for closing '>'
-            if (end == length) return null; // No closing '>'
+                if (equalsIgnoreCase(buffer, nameStart, nameEnd, HTTP_EQUIV))
+                    httpEquiv = equalsIgnoreCase(buffer, valueStart, valueEnd, CONTENT_TYPE);
+                else if (equalsIgnoreCase(buffer, nameStart, nameEnd, CONTENT)) {
+                    contentStart = valueStart;
+                    contentEnd = valueEnd;
+                } else if (equalsIgnoreCase(buffer, nameStart, nameEnd, CHARSET)) {
+                    charsetStart = valueStart;
+                    charsetEnd = valueEnd;
+                }
+            }
 
-            final ByteArrayCharSequence tagContent = new ByteArrayCharSequence(buffer, start + META_PATTERN.length(), end - start - META_PATTERN.length());
-            if (HTTP_EQUIV_PATTERN.matcher(tagContent).matches()) {
-                final Matcher m = CONTENT_PATTERN.matcher(tagContent);
-                if (m.matches()) return getCharsetNameFromHeader(m.group(2)); // got it!
+            if (charsetStart != -1) {
+                final String charset = charsetName(buffer, charsetStart, charsetEnd);
+                if (charset != null) return charset; // got it!
             }
+            if (httpEquiv && contentStart != -1) {
+                final String charset = charsetNameFromContent(buffer, contentStart, contentEnd);
+                if (charset != null) return charset; // got it!
+            }
+            i = p + 1;
+        }
 
-            start = end + 1;
+        return null; // no charset declared
+    }
+
+    /**
+     * Returns the position after the <samp>&gt;</samp> closing a tag, skipping the quoted attribute values
+     * that may contain one.
+     *
+     * @param p the position of the attributes of the tag, after its name.
+     */
+    private static int skipTag(final byte[] buffer, int p, final int length) {
+        while (p < length) {
+            final byte b = buffer[p++];
+            if (b == '>') return p;
+            if (b == '=') {
+                while (p < length && isSpace(buffer[p])) p++;
+                if (p < length && (buffer[p] == '"' || buffer[p] == '\'')) {
+                    final byte quote = buffer[p++];
+                    while (p < length && buffer[p] != quote) p++;
+                    p++;
+                }
+            }
         }
+        return length;
+    }
 
-        return null; // no '<meta' found
+    /**
+     * Returns the position of the end tag of an element whose content is raw text, such as <samp>SCRIPT</samp>,
+     * or the length of the buffer if it is not in the buffer.
+     *
+     * @param p    the position after the start tag of the element.
+     * @param name the lower-case name of the element.
+     */
+    private static int skipRawText(final byte[] buffer, int p, final int length, final byte[] name) {
+        for (; (p = indexOfLessThan(buffer, p, length)) != -1; p++) {
+            final int end = p + 2 + name.length;
+            if (end < length && buffer[p + 1] == '/' && equalsIgnoreCase(buffer, p + 2, end, name)
+                    && (buffer[end] == '>' || buffer[end] == '/' || isSpace(buffer[end])))
+                return p;
+        }
+        return length;
+    }
+
+    private static boolean isAsciiLetter(final byte b) {
+        return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z';
+    }
+
+    /**
+     * Returns the position of the first <samp>&lt;</samp> in a range of bytes, or -1.
+     */
+    private static int indexOfLessThan(final byte[] buffer, int from, final int to) {
+        for (; from < to; from++)
+            if (buffer[from] == '<') return from;
+        return -1;
+    }
+
+    /**
+     * Returns the charset name following <samp>charset=</samp> in the value of a <samp>content</samp> attribute.
+     */
+    private static String charsetNameFromContent(final byte[] buffer, final int start, final int end) {
+        for (int i = start; i + CHARSET.length <= end; i++) {
+            if (!equalsIgnoreCase(buffer, i, i + CHARSET.length, CHARSET)) continue;
+            int p = i + CHARSET.length;
+            while (p < end && isSpace(buffer[p])) p++;
+            if (p == end || buffer[p] != '=') continue;
+            p++;
+            while (p < end && isSpace(buffer[p])) p++;
+            if (p < end && (buffer[p] == '"' || buffer[p] == '\'')) p++;
+            return charsetName(buffer, p, end);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the charset name at the start of a range, after white space, or {@code null} if there is none.
+     */
+    private static String charsetName(final byte[] buffer, int start, final int end) {
+        while (start < end && isSpace(buffer[start])) start++;
+        int p = start;
+        while (p < end && buffer[p] >= 0 && CHARSET_CHAR[buffer[p]]) p++;
+        return p == start ? null : new String(buffer, start, p - start, Charsets.ISO_8859_1);
+    }
+
+    private static boolean isSpace(final byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    /**
+     * Compares case insensitively a range of bytes with a lower-case ASCII word.
+     */
+    private static boolean equalsIgnoreCase(final byte[] buffer, final int start, final int end, final byte[] word) {
+        if (end - start != word.length) return false;
+        for (int i = 0; i < word.length; i++) {
+            final int b = buffer[start + i];
+            if ((b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b) != word[i]) return false;
+        }
+        return true;
     }
 
     /**
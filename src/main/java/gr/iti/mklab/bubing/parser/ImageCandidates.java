@@ -0,0 +1,178 @@
+package gr.iti.mklab.bubing.parser;
+
+import gr.iti.mklab.image.Utils;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import net.htmlparser.jericho.StartTag;
+
+/**
+ * The URLs at which a page offers one logical image: the <samp>src</samp> of an <samp>IMG</samp> element, its lazy-loading
+ * attributes, its <samp>srcset</samp> and the <samp>srcset</samp> of the <samp>SOURCE</samp> elements of the enclosing
+ * <samp>PICTURE</samp>. Only the variant most likely to pass the dimension check is worth fetching.
+ * <p/>
+ * <p>A variant with a width descriptor (<samp>800w</samp>), or a density descriptor (<samp>2x</samp>) on an image with a
+ * <samp>width</samp> attribute, has a known width. {@link #select()} picks the narrowest variant wide enough to be
+ * indexed; if no variant has a known width it prefers <samp>srcset</samp> variants, by density, then lazy-loading
+ * attributes, then <samp>src</samp>, which is often just a placeholder when the others are there.
+ * <p/>
+ * <p>An instance is reused for all the images of a page, and is not thread safe.
+ */
+public class ImageCandidates {
+
+    /**
+     * The attributes in which lazy-loading scripts keep the URL of the actual image, in order of preference.
+     */
+    private static final String[] LAZY_ATTRIBUTES = {"data-src", "data-lazy-src", "data-original"};
+    /**
+     * The attributes in which lazy-loading scripts keep the actual <samp>srcset</samp>.
+     */
+    private static final String[] LAZY_SRCSET_ATTRIBUTES = {"data-srcset", "data-lazy-srcset"};
+    /**
+     * The rank of a <samp>src</samp> attribute, of a lazy-loading attribute and of a <samp>srcset</samp> variant without
+     * known width; the density of the latter is added to its rank.
+     */
+    private static final float SRC = 0, LAZY = 1, SRCSET = 2;
+
+    private final ObjectArrayList<String> urls = new ObjectArrayList<String>();
+    /**
+     * The width of each candidate, or -1 if unknown.
+     */
+    private final IntArrayList widths = new IntArrayList();
+    private final FloatArrayList ranks = new FloatArrayList();
+
+    /**
+     * Forgets all candidates.
+     */
+    public void clear() {
+        urls.clear();
+        widths.clear();
+        ranks.clear();
+    }
+
+    /**
+     * @return true if there are no candidates.
+     */
+    public boolean isEmpty() {
+        return urls.isEmpty();
+    }
+
+    /**
+     * Adds the candidates of a <samp>SOURCE</samp> element of a <samp>PICTURE</samp>, unless their type is one that
+     * cannot be decoded.
+     */
+    public void addSource(final StartTag source) {
+        final String type = source.getAttributeValue("type");
+        if (type != null && !decodable(type.trim().toLowerCase())) return;
+        addSrcset(source.getAttributeValue("srcset"), -1);
+        for (String attribute : LAZY_SRCSET_ATTRIBUTES) addSrcset(source.getAttributeValue(attribute), -1);
+    }
+
+    /**
+     * Adds the candidates of an <samp>IMG</samp> element.
+     */
+    public void addImage(final StartTag img) {
+        final int width = parseWidth(img.getAttributeValue("width"));
+        add(img.getAttributeValue("src"), -1, SRC);
+        for (String attribute : LAZY_ATTRIBUTES) add(img.getAttributeValue(attribute), -1, LAZY);
+        addSrcset(img.getAttributeValue("srcset"), width);
+        for (String attribute : LAZY_SRCSET_ATTRIBUTES) addSrcset(img.getAttributeValue(attribute), width);
+    }
+
+    /**
+     * Picks the candidate to fetch.
+     *
+     * @return the raw URL of the candidate, or {@code null} if there are none or all have a known width too small
+     * to be indexed.
+     */
+    public String select() {
+        int best = -1, widest = -1, unknown = -1;
+        final int size = urls.size();
+        for (int i = 0; i < size; i++) {
+            final int width = widths.getInt(i);
+            if (width < 0) {
+                if (unknown < 0 || ranks.getFloat(i) > ranks.getFloat(unknown)) unknown = i;
+            } else {
+                if (Utils.checkWidth(width) && (best < 0 || width < widths.getInt(best))) best = i;
+                if (widest < 0 || width > widths.getInt(widest)) widest = i;
+            }
+        }
+        if (best >= 0) return urls.get(best);
+        // the page declares all the variants it has, and they are too small
+        if (widest >= 0) return null;
+        return unknown < 0 ? null : urls.get(unknown);
+    }
+
+    private void add(final String url, final int width, final float rank) {
+        if (url == null) return;
+        final String trimmed = url.trim();
+        if (trimmed.length() == 0 || trimmed.regionMatches(true, 0, "data:", 0, 5)) return;
+        urls.add(trimmed);
+        widths.add(width);
+        ranks.add(rank);
+    }
+
+    /**
+     * Adds the variants of a <samp>srcset</samp> attribute, following the parsing rules of the HTML specification:
+     * a URL ends at the first space, and a comma ending it also ends the variant.
+     *
+     * @param srcset       the value of the attribute, or {@code null}.
+     * @param displayWidth the value of the <samp>width</samp> attribute of the image, or -1.
+     */
+    private void addSrcset(final String srcset, final int displayWidth) {
+        if (srcset == null) return;
+        final int length = srcset.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && (isSpace(srcset.charAt(i)) || srcset.charAt(i) == ',')) i++;
+            if (i == length) break;
+            final int start = i;
+            while (i < length && !isSpace(srcset.charAt(i))) i++;
+            int end = i;
+            if (srcset.charAt(end - 1) == ',') {
+                while (end > start && srcset.charAt(end - 1) == ',') end--;
+                add(srcset.substring(start, end), -1, SRCSET + 1);
+                continue;
+            }
+            final String url = srcset.substring(start, end);
+            int width = -1;
+            float density = 1;
+            // descriptors, up to the next comma
+            while (i < length && srcset.charAt(i) != ',') {
+                while (i < length && isSpace(srcset.charAt(i))) i++;
+                final int descriptor = i;
+                while (i < length && !isSpace(srcset.charAt(i)) && srcset.charAt(i) != ',') i++;
+                if (i - descriptor < 2) continue;
+                final char unit = Character.toLowerCase(srcset.charAt(i - 1));
+                try {
+                    if (unit == 'w') width = Integer.parseInt(srcset.substring(descriptor, i - 1));
+                    else if (unit == 'x') density = Float.parseFloat(srcset.substring(descriptor, i - 1));
+                } catch (NumberFormatException e) {
+                    // an invalid descriptor is ignored
+                }
+            }
+            if (width < 0 && displayWidth > 0) width = (int) (displayWidth * density);
+            add(url, width, SRCSET + density);
+        }
+    }
+
+    /**
+     * @return the value of a <samp>width</samp> attribute in pixels, or -1 if it is missing or not in pixels.
+     */
+    private static int parseWidth(final String width) {
+        if (width == null) return -1;
+        final String trimmed = width.trim();
+        int end = 0;
+        while (end < trimmed.length() && end < 6 && Character.isDigit(trimmed.charAt(end))) end++;
+        if (end == 0 || end < trimmed.length() && !trimmed.regionMatches(true, end, "px", 0, 2)) return -1;
+        return Integer.parseInt(trimmed.substring(0, end));
+    }
+
+    private static boolean decodable(final String type) {
+        return type.equals("image/jpeg") || type.equals("image/jpg") || type.equals("image/png") || type.equals("image/gif") || type.equals("image/bmp");
+    }
+
+    private static boolean isSpace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+}
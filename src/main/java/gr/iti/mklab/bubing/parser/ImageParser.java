@@ -1,9 +1,15 @@
 package gr.iti.mklab.bubing.parser;
 
-import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.CountingInputStream;
+import gr.iti.mklab.bubing.ItiAgent;
+import gr.iti.mklab.bubing.store.ImageStore;
+import gr.iti.mklab.image.ImageArchive;
+import gr.iti.mklab.image.ImageDecoder;
+import gr.iti.mklab.image.ImageYield;
+import gr.iti.mklab.image.PipelineStats;
 import gr.iti.mklab.image.Utils;
 import gr.iti.mklab.image.VisualIndexer;
 import gr.iti.mklab.simmo.items.Image;
@@ -18,10 +24,8 @@ import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
@@ -39,7 +43,19 @@ public class ImageParser<T> implements Parser<T> {
 
     SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
     private final HashFunction hashFunction;
+    /**
+     * Whether the parser runs in a crawl, and not on images already crawled.
+     */
+    private final boolean crawling;
     private byte[] buffer;
+    /**
+     * The digest of the content of the last response, or {@code null} if it has not been computed yet.
+     */
+    private byte[] digest;
+    /**
+     * Whether the content of the last response had already been seen at another URL.
+     */
+    private boolean contentDuplicate;
 
     /**
      * Return the hash function corresponding to a given message-digest algorithm given by name.
@@ -60,7 +76,20 @@ public class ImageParser<T> implements Parser<T> {
      * @param hashFunction the hash function used to digest, <code>null</code> if no digesting will be performed.
      */
     public ImageParser(final HashFunction hashFunction) {
+        this(hashFunction, true);
+    }
+
+    /**
+     * Builds a parser for digesting a page.
+     *
+     * @param hashFunction the hash function used to digest, <code>null</code> if no digesting will be performed.
+     * @param crawling     whether the parser runs in a crawl: only then are images already seen, by URL or content,
+     *                     skipped, and the outcomes recorded by {@link ImageYield} and {@link ImageStore}. Images
+     *                     parsed again, e.g. by {@link gr.iti.mklab.image.Reindexer}, have all been claimed already.
+     */
+    public ImageParser(final HashFunction hashFunction, final boolean crawling) {
         this.hashFunction = hashFunction;
+        this.crawling = crawling;
         this.buffer = new byte[1024];
     }
 
@@ -73,39 +102,82 @@ public class ImageParser<T> implements Parser<T> {
         this(forName(messageDigestAlgorithm));
     }
 
+    /**
+     * Builds a parser for digesting a page.
+     *
+     * @param messageDigestAlgorithm the digesting algorithm (as a string).
+     * @param crawling               whether the parser runs in a crawl (see {@link #ImageParser(HashFunction, boolean)}).
+     */
+    public ImageParser(final String messageDigestAlgorithm, final boolean crawling) throws NoSuchAlgorithmException {
+        this(forName(messageDigestAlgorithm), crawling);
+    }
+
     @Override
     public byte[] parse(final URI uri, final HttpResponse httpResponse, final LinkReceiver linkReceiver) throws IOException {
         //System.out.println("ImageParser " + uri);
         if (hashFunction == null) return null;
         String imageUrl = uri.toString();
-        final Hasher hasher = hashFunction.newHasher();
-        hasher.putBytes(imageUrl.getBytes());
-        HashCode code = hasher.hash();
-        final InputStream is = httpResponse.getEntity().getContent();
+        // The digest is computed on the content as it is read, so that BUbiNG detects identical images at different URLs
+        final CountingInputStream counter = new CountingInputStream(httpResponse.getEntity().getContent());
+        final HashingInputStream is = new HashingInputStream(hashFunction, counter);
+        final PipelineStats stats = PipelineStats.getInstance();
+        digest = null;
+        contentDuplicate = false;
 
         String contentType = httpResponse.getEntity().getContentType().getValue();
         long clength = httpResponse.getEntity().getContentLength();
-        if (Utils.checkContentHeaders((int) clength, contentType)) {
-            BufferedImage image = null;
+        //avoid indexing an image already found by ITIHTMLParser or fetched at another time
+        stats.increment(PipelineStats.Counter.IMAGE_URLS);
+        final boolean unseen = !crawling || ItiAgent.uniqueImageUrls().claim(imageUrl);
+        final boolean acceptable = unseen && Utils.checkContentHeaders(clength, contentType);
+        if (!unseen) stats.increment(PipelineStats.Counter.URL_DUPLICATES);
+        else if (!acceptable) {
+            stats.increment(PipelineStats.Counter.REJECTED_HEADERS);
+            if (crawling) ImageYield.getInstance().record(uri, false);
+        }
+        if (acceptable) {
+            ImageDecoder.Decoded image = null;
             try {
-                image = ImageIO.read(is);
+                image = ImageDecoder.read(is, new ImageDecoder.DecodeFilter() {
+                    @Override
+                    public boolean decode() {
+                        // the whole content has been read: skip images whose content has already been seen
+                        digest = is.hash().asBytes();
+                        if (!crawling || ItiAgent.uniqueImageContents().claim(digest)) return true;
+                        stats.increment(PipelineStats.Counter.CONTENT_DUPLICATES);
+                        contentDuplicate = true;
+                        return false;
+                    }
+                });
             } catch (IllegalArgumentException e) {
                 // this exception is probably thrown because of a greyscale jpeg image
-                System.out.println("Exception: " + e.getMessage() + " | Image: " + imageUrl);
-                image = ImageIOGreyScale.read(is); // retry with the modified class
+                LOGGER.debug("Retrying {} as greyscale: {}", imageUrl, e.getMessage());
+                BufferedImage grey = ImageIOGreyScale.read(is); // retry with the modified class
+                if (grey != null) image = new ImageDecoder.Decoded(grey);
             } catch (MalformedURLException e) {
-                System.out.println("Malformed url exception. Url: " + imageUrl);
+                LOGGER.debug("Malformed image URL {}", imageUrl);
             }
 
-            if (Utils.checkImage(image)) {
+            final boolean accepted = Utils.checkImage(image);
+            if (crawling && !contentDuplicate) ImageYield.getInstance().record(uri, accepted);
+            if (accepted) {
+                // images parsed again keep the id they were archived with, so that their document is not duplicated
+                final ObjectId objectId = crawling ? new ObjectId() : ImageArchive.imageId(imageUrl, httpResponse.getFirstHeader(ImageArchive.ID_HEADER));
+                if (crawling) ImageStore.accept(uri, objectId);
 
-                ObjectId objectId = new ObjectId();
                 Image item = new Image();
                 item.setObjectId(objectId);
                 item.setUrl(imageUrl);
                 item.setWidth(image.getWidth());
                 item.setHeight(image.getHeight());
                 item.setWebPageUrl(uri.toString());
+                if (!crawling) {
+                    // images parsed again may come with the page they were found in, as archived by ImageFetcher
+                    final Header page = httpResponse.getFirstHeader(ImageArchive.PAGE_URL_HEADER);
+                    if (page != null) item.setWebPageUrl(page.getValue());
+                    final Header altText = httpResponse.getFirstHeader(ImageArchive.ALT_TEXT_HEADER);
+                    if (altText != null) item.setTitle(altText.getValue());
+                }
 
                 try {
                     String lastModified = httpResponse.getFirstHeader("Last-Modified").getValue();
@@ -114,15 +186,19 @@ public class ImageParser<T> implements Parser<T> {
                     //ignore. last modified will simply not be set
                 }
                 try {
-                    VisualIndexer.getInstance().indexAndStore(image, item);
+                    VisualIndexer.getInstance().indexAndStore(image.getImage(), item);
                 } catch (Exception e) {
-                    System.out.println("ImageParser parse exeption: " + e);
+                    LOGGER.warn("Could not index " + imageUrl, e);
                 }
 
             }
         }
-        //for (int length; (length = is.read(buffer, 0, buffer.length)) > 0; ) hasher.putBytes(buffer, 0, length);
-        return code.asBytes();
+        if (digest == null) {
+            for (int length; (length = is.read(buffer, 0, buffer.length)) > 0; ) ;
+            digest = is.hash().asBytes();
+        }
+        stats.add(PipelineStats.Counter.IMAGE_BYTES, counter.getCount());
+        return digest;
     }
 
     @Override
@@ -132,7 +208,7 @@ public class ImageParser<T> implements Parser<T> {
 
     @Override
     public ImageParser<T> clone() {
-        return new ImageParser<T>(hashFunction == null ? null : hashFunction);
+        return new ImageParser<T>(hashFunction == null ? null : hashFunction, crawling);
     }
 
     @Override
@@ -0,0 +1,103 @@
+package gr.iti.mklab.bubing.store;
+
+import com.google.common.io.ByteStreams;
+import gr.iti.mklab.image.ImageArchive;
+import gr.iti.mklab.image.ImageHttpClient;
+import it.unimi.di.law.bubing.RuntimeConfiguration;
+import it.unimi.di.law.bubing.store.Store;
+import it.unimi.dsi.fastutil.io.RepositionableStream;
+import org.apache.http.HttpResponse;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+/**
+ * A store keeping the images accepted by {@link gr.iti.mklab.bubing.parser.ImageParser} in an {@link ImageArchive},
+ * in the <samp>images</samp> folder of the crawl root, so that they can be vectorized again without crawling them again.
+ * <p/>
+ * <p>BUbiNG stores a response on the parsing thread that has just parsed it; the parser marks the responses it
+ * accepted with {@link #accept(URI, ObjectId)}, and all other responses are discarded. The object id given to the
+ * image is archived with it, so that indexing it again updates the same document. The content is copied and queued;
+ * writing happens on the archive thread, and images are dropped rather than waited for when the archive falls behind.
+ * Use it with a store filter letting images through, e.g. <samp>storeFilter=ContentTypeStartsWith(image/)</samp>.
+ * <p/>
+ * <p>The images found in pages and downloaded by {@link gr.iti.mklab.image.ImageFetcher} are appended to the same
+ * archive, which the store makes available through {@link #getArchive()}.
+ * <p/>
+ * <p>As BUbiNG builds its store from the runtime configuration, the store also hands it to the {@link ImageHttpClient}.
+ */
+public class ImageStore implements Closeable, Store {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(ImageStore.class);
+
+    /**
+     * The last response accepted by the image parser on the current parsing thread, and the id of its image.
+     */
+    private static final ThreadLocal<Accepted> ACCEPTED = new ThreadLocal<Accepted>();
+
+    private static final class Accepted {
+        final URI uri;
+        final ObjectId id;
+
+        Accepted(URI uri, ObjectId id) {
+            this.uri = uri;
+            this.id = id;
+        }
+    }
+
+    /**
+     * The archive of the store of this agent, or {@code null} if there is none.
+     */
+    private static volatile ImageArchive sharedArchive;
+
+    private final ImageArchive archive;
+
+    public ImageStore(final RuntimeConfiguration rc) throws IOException {
+        archive = new ImageArchive(new File(rc.rootDir, "images"));
+        sharedArchive = archive;
+        ImageHttpClient.getInstance().configure(rc);
+    }
+
+    /**
+     * @return the archive of the store of this agent, or {@code null} if the agent has no image store or it is closed.
+     */
+    public static ImageArchive getArchive() {
+        return sharedArchive;
+    }
+
+    /**
+     * Marks the response being parsed by the current thread as one to be stored.
+     *
+     * @param uri the URI of the response.
+     * @param id  the object id given to the image.
+     */
+    public static void accept(URI uri, ObjectId id) {
+        ACCEPTED.set(new Accepted(uri, id));
+    }
+
+    @Override
+    public void store(URI uri, HttpResponse response, boolean isDuplicate, byte[] contentDigest, String guessedCharset) throws IOException, InterruptedException {
+        final Accepted accepted = ACCEPTED.get();
+        ACCEPTED.remove();
+        if (isDuplicate || accepted == null || !uri.equals(accepted.uri)) return;
+
+        final InputStream content = response.getEntity().getContent();
+        if (content instanceof RepositionableStream) ((RepositionableStream) content).position(0);
+        final byte[] bytes = ByteStreams.toByteArray(content);
+        if (!archive.append(new ImageArchive.Record(uri.toString(), System.currentTimeMillis(),
+                response.getStatusLine().getStatusCode(), ImageArchive.withId(response.getAllHeaders(), accepted.id), bytes)))
+            if (LOGGER.isDebugEnabled()) LOGGER.debug("Archive queue full, dropped {}", uri);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (sharedArchive == archive) sharedArchive = null;
+        archive.close();
+    }
+}
@@ -1,5 +1,6 @@
 package gr.iti.mklab.bubing.store;
 
+import gr.iti.mklab.image.ImageHttpClient;
 import it.unimi.di.law.bubing.RuntimeConfiguration;
 import it.unimi.di.law.bubing.store.Store;
 import org.apache.http.HttpResponse;
@@ -12,6 +13,8 @@ import java.net.URI;
 
 /**
  * Created by kandreadou on 12/1/14.
+ * <p/>
+ * <p>As BUbiNG builds its store from the runtime configuration, the store also hands it to the {@link ImageHttpClient}.
  */
 public class NoStore implements Closeable, Store {
 
@@ -20,6 +23,7 @@ public class NoStore implements Closeable, Store {
 
     public NoStore(final RuntimeConfiguration rc) throws IOException {
         LOGGER.warn("###### NO STORE USED");
+        ImageHttpClient.getInstance().configure(rc);
     }
 
     @Override
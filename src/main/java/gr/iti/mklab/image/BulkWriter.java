@@ -0,0 +1,295 @@
+package gr.iti.mklab.image;
+
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBObject;
+import gr.iti.mklab.simmo.associations.Similarity;
+import org.mongodb.morphia.Datastore;
+import org.mongodb.morphia.Morphia;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A write-behind sink for Morphia entities.
+ * <p/>
+ * <p>Entities are queued by {@link #write(Object)} and inserted by a background thread with one unordered bulk insert
+ * per collection, as soon as {@link #BATCH_SIZE} entities are pending or {@link #FLUSH_INTERVAL} milliseconds
+ * have passed since the first one was queued. An entity whose id is already in its collection, e.g. an image indexed
+ * again by the {@link Reindexer}, is skipped and counted as a {@linkplain #getDuplicateCount() duplicate}, without
+ * failing the rest of the batch; a {@link Similarity}, which has no id of its own, gets one made of the ids of its
+ * objects. The queue holds at most {@link #QUEUE_SIZE} entities:
+ * when it is full, {@link #write(Object)} blocks. {@link #flush()} waits for the entities queued before it to be
+ * inserted, and {@link #close()} inserts everything still queued; entities
+ * written after that are inserted right away, by the thread writing them.
+ */
+public class BulkWriter implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkWriter.class);
+
+    /**
+     * The maximum number of entities per bulk insert (<samp>-Dreveal.writeBatchSize</samp>).
+     */
+    public static final int BATCH_SIZE = Integer.getInteger("reveal.writeBatchSize", 500);
+    /**
+     * The maximum time in milliseconds an entity waits before being written (<samp>-Dreveal.writeFlushInterval</samp>).
+     */
+    public static final int FLUSH_INTERVAL = Integer.getInteger("reveal.writeFlushInterval", 1000);
+    /**
+     * The maximum number of entities waiting to be written (<samp>-Dreveal.writeQueueSize</samp>).
+     */
+    public static final int QUEUE_SIZE = Integer.getInteger("reveal.writeQueueSize", 20000);
+
+    /**
+     * Queued after the last entity by {@link #close()}.
+     */
+    private static final Object END = new Object();
+    /**
+     * The code of the error of an insert whose id is already in the collection.
+     */
+    private static final int DUPLICATE_KEY = 11000;
+
+    /**
+     * Queued by {@link #flush()}: the writer thread inserts the entities it has gathered and releases it.
+     */
+    private static final class FlushRequest {
+        final CountDownLatch done = new CountDownLatch(1);
+    }
+
+    private final Morphia morphia;
+    private final Datastore datastore;
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+    private final Thread writerThread;
+    /**
+     * Held for reading while queueing an entity, and for writing by {@link #close()}, so that no entity is
+     * queued after {@link #END}.
+     */
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong totalFlushTime = new AtomicLong();
+    private final AtomicLong maxFlushTime = new AtomicLong();
+    private volatile long lastFlushTime;
+
+    public BulkWriter(final Morphia morphia, final Datastore datastore) {
+        this.morphia = morphia;
+        this.datastore = datastore;
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "BulkWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues an entity for writing, waiting if the queue is full.
+     */
+    public void write(Object entity) throws InterruptedException {
+        closing.readLock().lock();
+        try {
+            if (!closed) {
+                queue.put(entity);
+                return;
+            }
+        } finally {
+            closing.readLock().unlock();
+        }
+        insert(Collections.singletonList(entity));
+    }
+
+    /**
+     * Waits until the entities queued so far have been inserted, or their insert has failed.
+     */
+    public void flush() throws InterruptedException {
+        final FlushRequest request = new FlushRequest();
+        closing.readLock().lock();
+        try {
+            if (!closed) queue.put(request);
+        } finally {
+            closing.readLock().unlock();
+        }
+        if (closed) writerThread.join();
+        else request.done.await();
+    }
+
+    /**
+     * Writes all queued entities and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        closing.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+            // the writer thread keeps draining the queue, so this does not wait forever
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // the writer thread flushes its batch and stops
+            writerThread.interrupt();
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            closing.writeLock().unlock();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.info("BulkWriter closed: {} entities written, {} duplicates, {} failed", written.get(), duplicates.get(), failed.get());
+    }
+
+    private void writeLoop() {
+        final List<Object> batch = new ArrayList<Object>(BATCH_SIZE);
+        FlushRequest request = null;
+        boolean end = false;
+        while (!end) {
+            try {
+                Object next = queue.take();
+                final long deadline = System.currentTimeMillis() + FLUSH_INTERVAL;
+                for (; ; ) {
+                    if (next == END) {
+                        end = true;
+                        break;
+                    }
+                    if (next instanceof FlushRequest) {
+                        request = (FlushRequest) next;
+                        break;
+                    }
+                    batch.add(next);
+                    if (batch.size() == BATCH_SIZE) break;
+                    next = queue.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                    if (next == null) break;
+                }
+            } catch (InterruptedException e) {
+                end = true;
+            }
+            insert(batch);
+            batch.clear();
+            if (request != null) {
+                request.done.countDown();
+                request = null;
+            }
+        }
+    }
+
+    private void insert(List<Object> batch) {
+        if (batch.isEmpty()) return;
+        final long start = System.currentTimeMillis(), startNanos = System.nanoTime();
+        final Map<Class<?>, List<DBObject>> byClass = new HashMap<Class<?>, List<DBObject>>();
+        for (Object entity : batch) {
+            List<DBObject> objects = byClass.get(entity.getClass());
+            if (objects == null) byClass.put(entity.getClass(), objects = new ArrayList<DBObject>());
+            final DBObject object = morphia.toDBObject(entity);
+            if (entity instanceof Similarity && object.get("_id") == null) {
+                final Similarity similarity = (Similarity) entity;
+                object.put("_id", similarity.getFirstObject().getObjectId() + "-" + similarity.getSecondObject().getObjectId());
+            }
+            objects.add(object);
+        }
+        for (Map.Entry<Class<?>, List<DBObject>> e : byClass.entrySet()) {
+            final BulkWriteOperation insert = datastore.getCollection(e.getKey()).initializeUnorderedBulkOperation();
+            for (DBObject object : e.getValue()) insert.insert(object);
+            try {
+                written.addAndGet(insert.execute().getInsertedCount());
+            } catch (BulkWriteException ex) {
+                written.addAndGet(ex.getWriteResult().getInsertedCount());
+                int duplicated = 0;
+                for (BulkWriteError error : ex.getWriteErrors()) if (error.getCode() == DUPLICATE_KEY) duplicated++;
+                duplicates.addAndGet(duplicated);
+                final int errors = ex.getWriteErrors().size() - duplicated;
+                if (errors > 0 || ex.getWriteConcernError() != null) {
+                    failed.addAndGet(e.getValue().size() - ex.getWriteResult().getInsertedCount() - duplicated);
+                    LOGGER.error("Bulk insert of " + e.getValue().size() + " " + e.getKey().getSimpleName() + " failed for " + errors, ex);
+                }
+            } catch (Exception ex) {
+                failed.addAndGet(e.getValue().size());
+                LOGGER.error("Bulk insert of " + e.getValue().size() + " " + e.getKey().getSimpleName() + " failed", ex);
+            }
+        }
+        final long elapsed = System.currentTimeMillis() - start;
+        PipelineStats.getInstance().record(PipelineStats.Stage.STORE, startNanos);
+        lastFlushTime = elapsed;
+        flushes.incrementAndGet();
+        totalFlushTime.addAndGet(elapsed);
+        for (long max; elapsed > (max = maxFlushTime.get()) && !maxFlushTime.compareAndSet(max, elapsed); ) ;
+    }
+
+    /**
+     * @return the number of entities waiting to be written.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of entities written so far.
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of entities whose insert failed.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of entities not written because their id was already in their collection.
+     */
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return the number of flushes so far.
+     */
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    /**
+     * @return the duration in milliseconds of the last flush.
+     */
+    public long getLastFlushTime() {
+        return lastFlushTime;
+    }
+
+    /**
+     * @return the longest flush so far, in milliseconds.
+     */
+    public long getMaxFlushTime() {
+        return maxFlushTime.get();
+    }
+
+    /**
+     * @return the average flush duration in milliseconds.
+     */
+    public double getMeanFlushTime() {
+        final long n = flushes.get();
+        return n == 0 ? 0 : (double) totalFlushTime.get() / n;
+    }
+}
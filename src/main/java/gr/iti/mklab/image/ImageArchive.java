@@ -0,0 +1,655 @@
+package gr.iti.mklab.image;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An append-only archive of the image responses accepted by the pipeline, so that images can be
+ * vectorized again without crawling them again.
+ * <p/>
+ * <p>Records (URL, time, status, headers and raw content) are queued by {@link #append(Record)}, which never
+ * blocks: when {@link #QUEUE_SIZE} records are waiting, new ones are dropped. A background thread commits them
+ * in groups: it gathers records for at most {@link #COMMIT_INTERVAL} milliseconds or {@link #BLOCK_SIZE} bytes,
+ * compresses them as a single zlib block, writes the block with one call and forces it to disk. Blocks holding only
+ * JPEG, PNG, GIF or WebP images, whose content is already compressed, are stored as they are: deflating them would
+ * cost the writer more time than it takes to write them, for a gain of a few percent. Blocks are
+ * appended to segment files named <samp>images-NNNNN.seg</samp>, and a new segment is started after
+ * {@link #SEGMENT_SIZE} bytes or when the archive is opened again, so that existing segments are never modified.
+ * <p/>
+ * <p>A block is made of a magic number, its compression method, its stored and uncompressed length, and the records; a block
+ * truncated by a crash is detected and skipped by {@link Reader}, which reads segments sequentially with large buffers.
+ * <p/>
+ * <p>Besides the headers of the response, a record may have headers recording the {@linkplain #ID_HEADER id} of the image
+ * and where it was found ({@link #PAGE_URL_HEADER}, {@link #ALT_TEXT_HEADER}); headers with these names sent by
+ * servers are not archived.
+ */
+public class ImageArchive implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageArchive.class);
+
+    /**
+     * The maximum number of records waiting to be written (<samp>-Dreveal.archiveQueueSize</samp>).
+     */
+    public static final int QUEUE_SIZE = Integer.getInteger("reveal.archiveQueueSize", 1000);
+    /**
+     * The maximum time in milliseconds a record waits before being committed (<samp>-Dreveal.archiveCommitInterval</samp>).
+     */
+    public static final int COMMIT_INTERVAL = Integer.getInteger("reveal.archiveCommitInterval", 200);
+    /**
+     * The uncompressed size in bytes after which a block is committed (<samp>-Dreveal.archiveBlockSize</samp>).
+     */
+    public static final int BLOCK_SIZE = Integer.getInteger("reveal.archiveBlockSize", 4 << 20);
+    /**
+     * The size in bytes after which a new segment is started (<samp>-Dreveal.archiveSegmentSize</samp>).
+     */
+    public static final long SEGMENT_SIZE = Long.getLong("reveal.archiveSegmentSize", 1L << 30);
+
+    private static final int BLOCK_MAGIC = 0x52564941; // "RVIA"
+    private static final int BLOCK_HEADER_SIZE = 4 * 4;
+    private static final int STORED = 0, DEFLATED = 1;
+    /**
+     * The content types of images whose content is already compressed.
+     */
+    private static final String[] COMPRESSED_TYPES = {"image/jpeg", "image/pjpeg", "image/png", "image/gif", "image/webp"};
+    private static final String SEGMENT_PREFIX = "images-", SEGMENT_SUFFIX = ".seg";
+    /**
+     * Header values longer than this are not archived, as they could not be written as modified UTF-8.
+     */
+    private static final int MAX_HEADER_LENGTH = 8192;
+    /**
+     * The prefix of the names of the headers added by the archive.
+     */
+    private static final String ARCHIVE_HEADER_PREFIX = "X-Reveal-";
+    /**
+     * The archived header holding the object id given to an image when it was crawled.
+     */
+    public static final String ID_HEADER = "X-Reveal-Id";
+    /**
+     * The archived header holding the URL of the page where an image was found.
+     */
+    public static final String PAGE_URL_HEADER = "X-Reveal-Page-Url";
+    /**
+     * The archived header holding the alternative text of an image in its page.
+     */
+    public static final String ALT_TEXT_HEADER = "X-Reveal-Alt-Text";
+
+    /**
+     * @return whether a header is one added by the archive, rather than one of the response.
+     */
+    public static boolean isArchiveHeader(String name) {
+        return name.regionMatches(true, 0, ARCHIVE_HEADER_PREFIX, 0, ARCHIVE_HEADER_PREFIX.length());
+    }
+
+    /**
+     * @param headers the headers of a response.
+     * @param id      the object id given to the image.
+     * @return the headers of the response, without any header {@linkplain #isArchiveHeader(String) of the archive},
+     * followed by {@link #ID_HEADER}.
+     */
+    public static Header[] withId(Header[] headers, ObjectId id) {
+        final List<Header> archived = new ArrayList<Header>(headers.length + 1);
+        for (Header header : headers) if (!isArchiveHeader(header.getName())) archived.add(header);
+        archived.add(new BasicHeader(ID_HEADER, id.toString()));
+        return archived.toArray(new Header[archived.size()]);
+    }
+
+    /**
+     * Returns the object id of an archived image: the one it was given when it was crawled or, for images archived
+     * without it, one derived from its URL. Either way, the image gets the same id every time it is indexed again.
+     *
+     * @param url      the URL of the image.
+     * @param idHeader the {@link #ID_HEADER} of the record, or {@code null}.
+     */
+    public static ObjectId imageId(String url, Header idHeader) {
+        if (idHeader != null && ObjectId.isValid(idHeader.getValue())) return new ObjectId(idHeader.getValue());
+        return new ObjectId(Arrays.copyOf(Hashing.md5().hashString(url, Charsets.UTF_8).asBytes(), 12));
+    }
+
+    /**
+     * An archived response.
+     */
+    public static class Record {
+        private final String url;
+        private final long time;
+        private final int status;
+        private final Header[] headers;
+        private final byte[] content;
+
+        public Record(String url, long time, int status, Header[] headers, byte[] content) {
+            this.url = url;
+            this.time = time;
+            this.status = status;
+            this.headers = headers;
+            this.content = content;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return the time the response was archived, in milliseconds since the epoch.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public Header[] getHeaders() {
+            return headers;
+        }
+
+        /**
+         * @return the first header with the given name, or {@code null}.
+         */
+        public Header getFirstHeader(String name) {
+            for (Header header : headers)
+                if (header.getName().equalsIgnoreCase(name)) return header;
+            return null;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+    }
+
+    /**
+     * Queued after the last record by {@link #close()}.
+     */
+    private static final Record END = new Record(null, 0, 0, null, null);
+
+    private final File folder;
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    private final FastByteArrayOutputStream block = new FastByteArrayOutputStream(BLOCK_SIZE);
+    private final DataOutputStream blockData = new DataOutputStream(block);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    /**
+     * Whether the current block holds a record worth deflating.
+     */
+    private boolean compressible;
+    private byte[] compressed = new byte[BLOCK_SIZE];
+    private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+    private int segmentNumber;
+    private FileOutputStream segment;
+    private long segmentLength;
+
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Opens an archive for appending, creating its folder if necessary.
+     *
+     * @param folder the folder of the segments.
+     */
+    public ImageArchive(final File folder) throws IOException {
+        this.folder = folder;
+        if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Cannot create " + folder);
+        final File[] segments = segments(folder);
+        segmentNumber = segments.length == 0 ? 0 : segmentNumber(segments[segments.length - 1]) + 1;
+
+        final PipelineStats stats = PipelineStats.getInstance();
+        stats.addGauge("ArchiveQueueSize", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return getQueueSize();
+            }
+        });
+        stats.addGauge("ArchivedImages", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return getArchivedCount();
+            }
+        });
+        stats.addGauge("ArchiveDropped", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return getDroppedCount();
+            }
+        });
+        stats.addGauge("ArchiveBytes", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return getBytesWritten();
+            }
+        });
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "ImageArchive");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        LOGGER.info("Archiving images in {}, starting from segment {}", folder, segmentNumber);
+    }
+
+    /**
+     * Queues a record for writing. This method never blocks.
+     *
+     * @return false if the record was dropped because the queue is full or the archive is closed.
+     */
+    public boolean append(Record record) {
+        if (closed || !queue.offer(record)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes all queued records and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            queue.put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.info("ImageArchive closed: {} images archived, {} dropped, {} failed", archived.get(), dropped.get(), failed.get());
+    }
+
+    private void writeLoop() {
+        int records = 0;
+        boolean end = false;
+        while (!end) {
+            try {
+                final Record first = queue.take();
+                if (first == END) break;
+                records += add(first);
+                final long deadline = System.currentTimeMillis() + COMMIT_INTERVAL;
+                while (block.length < BLOCK_SIZE) {
+                    final Record next = queue.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                    if (next == null) break;
+                    if (next == END) {
+                        end = true;
+                        break;
+                    }
+                    records += add(next);
+                }
+            } catch (InterruptedException e) {
+                end = true;
+            }
+            try {
+                commit();
+                archived.addAndGet(records);
+            } catch (IOException e) {
+                failed.addAndGet(records);
+                LOGGER.error("Could not write " + records + " images to " + folder, e);
+                closeSegment();
+            }
+            records = 0;
+            block.reset();
+            compressible = false;
+        }
+        closeSegment();
+        deflater.end();
+    }
+
+    /**
+     * Serializes a record at the end of the current block.
+     *
+     * @return the number of records added (0 or 1).
+     */
+    private int add(Record record) {
+        final long start = block.length;
+        try {
+            blockData.writeUTF(record.url);
+            blockData.writeLong(record.time);
+            blockData.writeShort(record.status);
+            int count = 0;
+            for (Header header : record.headers)
+                if (header.getValue() != null && header.getValue().length() <= MAX_HEADER_LENGTH) count++;
+            blockData.writeShort(count);
+            for (Header header : record.headers) {
+                if (header.getValue() == null || header.getValue().length() > MAX_HEADER_LENGTH) continue;
+                blockData.writeUTF(header.getName());
+                blockData.writeUTF(header.getValue());
+            }
+            blockData.writeInt(record.content.length);
+            blockData.write(record.content);
+            if (!isCompressed(record)) compressible = true;
+            return 1;
+        } catch (IOException e) {
+            // a URL too long for modified UTF-8
+            block.length = (int) start;
+            block.position(start);
+            failed.incrementAndGet();
+            return 0;
+        }
+    }
+
+    private static boolean isCompressed(Record record) {
+        final Header contentType = record.getFirstHeader("Content-Type");
+        if (contentType == null) return false;
+        for (String type : COMPRESSED_TYPES)
+            if (contentType.getValue().regionMatches(true, 0, type, 0, type.length())) return true;
+        return false;
+    }
+
+    /**
+     * Compresses the current block if it is worth it, and appends it to the current segment with a single write.
+     */
+    private void commit() throws IOException {
+        if (block.length == 0) return;
+        final ByteBuffer payload;
+        final int method;
+        if (compressible) {
+            deflater.reset();
+            deflater.setInput(block.array, 0, block.length);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length + (compressed.length >> 1));
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            payload = ByteBuffer.wrap(compressed, 0, length);
+            method = DEFLATED;
+        } else {
+            payload = ByteBuffer.wrap(block.array, 0, block.length);
+            method = STORED;
+        }
+        final int length = BLOCK_HEADER_SIZE + payload.remaining();
+        header.clear();
+        header.putInt(BLOCK_MAGIC).putInt(method).putInt(payload.remaining()).putInt(block.length).flip();
+
+        if (segment == null) openSegment();
+        final FileChannel channel = segment.getChannel();
+        final ByteBuffer[] buffers = {header, payload};
+        while (payload.hasRemaining()) channel.write(buffers);
+        channel.force(false);
+        segmentLength += length;
+        bytesWritten.addAndGet(length);
+        if (segmentLength >= SEGMENT_SIZE) closeSegment();
+    }
+
+    private void openSegment() throws IOException {
+        final File file = new File(folder, String.format("%s%05d%s", SEGMENT_PREFIX, segmentNumber++, SEGMENT_SUFFIX));
+        segment = new FileOutputStream(file);
+        segmentLength = 0;
+        LOGGER.info("Writing images to {}", file);
+    }
+
+    private void closeSegment() {
+        if (segment == null) return;
+        try {
+            segment.close();
+        } catch (IOException e) {
+            LOGGER.error("Could not close segment in " + folder, e);
+        }
+        segment = null;
+    }
+
+    /**
+     * @return the segments of an archive, in the order they were written.
+     */
+    public static File[] segments(File folder) {
+        final File[] segments = folder.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                final String name = file.getName();
+                return file.isFile() && name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (segments == null) return new File[0];
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static int segmentNumber(File segment) {
+        final String name = segment.getName();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * @return the number of records waiting to be written.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of records written so far.
+     */
+    public long getArchivedCount() {
+        return archived.get();
+    }
+
+    /**
+     * @return the number of records dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of records that could not be written.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of bytes written so far.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Reads the records of an archive sequentially, segment after segment.
+     */
+    public static class Reader implements Closeable {
+
+        private static final int BUFFER_SIZE = 1 << 20;
+
+        private final File[] segments;
+        private int nextSegment;
+        private DataInputStream segment;
+        /**
+         * The number of blocks read from the current segment.
+         */
+        private long blockNumber;
+        private final Inflater inflater = new Inflater();
+        private byte[] compressed = new byte[BLOCK_SIZE];
+        private byte[] records = new byte[BLOCK_SIZE];
+        private int blockLength;
+        private final PositionedByteArrayInputStream blockStream = new PositionedByteArrayInputStream();
+        private final DataInputStream block = new DataInputStream(blockStream);
+
+        /**
+         * Opens the segments currently in an archive folder.
+         */
+        public Reader(File folder) {
+            this(segments(folder));
+        }
+
+        public Reader(File[] segments) {
+            this.segments = segments;
+        }
+
+        /**
+         * @return the segments read.
+         */
+        public File[] getSegments() {
+            return segments;
+        }
+
+        /**
+         * @return the index in {@link #getSegments()} of the segment of the last record returned.
+         */
+        public int getSegment() {
+            return nextSegment - 1;
+        }
+
+        /**
+         * @return the number of the block of the last record returned inside its segment, starting from 0.
+         */
+        public long getBlock() {
+            return blockNumber - 1;
+        }
+
+        /**
+         * Moves to a block: the following records will be read from there. The blocks before it in its segment
+         * are skipped without being read.
+         *
+         * @param segmentIndex the index in {@link #getSegments()} of a segment.
+         * @param blocks       the number of blocks to skip at the start of the segment.
+         */
+        public void seek(int segmentIndex, long blocks) throws IOException {
+            closeSegment();
+            blockLength = 0;
+            nextSegment = segmentIndex;
+            if (nextSegment >= segments.length) return;
+            openSegment();
+            for (; blockNumber < blocks; blockNumber++) {
+                if (segment.readInt() != BLOCK_MAGIC)
+                    throw new IOException("Bad block in " + segments[nextSegment - 1]);
+                segment.readInt();
+                final int storedLength = segment.readInt();
+                segment.readInt();
+                if (segment.skipBytes(storedLength) != storedLength) throw new EOFException();
+            }
+        }
+
+        private void openSegment() throws IOException {
+            segment = new DataInputStream(new BufferedInputStream(new FileInputStream(segments[nextSegment++]), BUFFER_SIZE));
+            blockNumber = 0;
+        }
+
+        /**
+         * @return the next record, or {@code null} if there are no more records.
+         */
+        public Record next() throws IOException {
+            while (blockStream.position() >= blockLength) {
+                if (!nextBlock()) return null;
+            }
+            final String url = block.readUTF();
+            final long time = block.readLong();
+            final int status = block.readShort();
+            final Header[] headers = new Header[block.readShort()];
+            for (int i = 0; i < headers.length; i++) headers[i] = new BasicHeader(block.readUTF(), block.readUTF());
+            final byte[] content = new byte[block.readInt()];
+            block.readFully(content);
+            return new Record(url, time, status, headers, content);
+        }
+
+        /**
+         * Reads and inflates the next block, opening the next segment if necessary.
+         *
+         * @return false if there are no more blocks.
+         */
+        private boolean nextBlock() throws IOException {
+            for (; ; ) {
+                if (segment == null) {
+                    if (nextSegment == segments.length) return false;
+                    openSegment();
+                }
+                try {
+                    final int magic = segment.readInt();
+                    if (magic != BLOCK_MAGIC)
+                        throw new IOException("Bad block in " + segments[nextSegment - 1]);
+                    final int method = segment.readInt();
+                    final int storedLength = segment.readInt();
+                    blockLength = segment.readInt();
+                    if (records.length < blockLength) records = new byte[blockLength];
+                    if (method == STORED) segment.readFully(records, 0, blockLength);
+                    else {
+                        if (compressed.length < storedLength) compressed = new byte[storedLength];
+                        segment.readFully(compressed, 0, storedLength);
+                        inflater.reset();
+                        inflater.setInput(compressed, 0, storedLength);
+                        if (inflater.inflate(records, 0, blockLength) != blockLength || !inflater.finished())
+                            throw new IOException("Bad block length in " + segments[nextSegment - 1]);
+                    }
+                    blockStream.set(records, blockLength);
+                    blockNumber++;
+                    return true;
+                } catch (EOFException e) {
+                    // the end of the segment, possibly truncated by a crash
+                    closeSegment();
+                } catch (DataFormatException e) {
+                    LOGGER.error("Corrupted block in " + segments[nextSegment - 1] + ", skipping the rest of the segment", e);
+                    closeSegment();
+                } catch (IOException e) {
+                    LOGGER.error("Skipping the rest of " + segments[nextSegment - 1], e);
+                    closeSegment();
+                }
+            }
+        }
+
+        private void closeSegment() throws IOException {
+            if (segment != null) segment.close();
+            segment = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeSegment();
+            inflater.end();
+        }
+    }
+
+    /**
+     * A byte-array input stream whose array can be replaced, and whose position is known.
+     */
+    private static class PositionedByteArrayInputStream extends ByteArrayInputStream {
+
+        PositionedByteArrayInputStream() {
+            super(new byte[0]);
+        }
+
+        void set(byte[] array, int length) {
+            buf = array;
+            pos = 0;
+            count = length;
+            mark = 0;
+        }
+
+        int position() {
+            return pos;
+        }
+    }
+}
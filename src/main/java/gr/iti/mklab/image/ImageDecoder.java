@@ -0,0 +1,246 @@
+package gr.iti.mklab.image;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Decodes candidate images, rejecting the small ones before any pixel is decoded.
+ * <p/>
+ * <p>The width and height are read from the format header through the {@link ImageReader}
+ * and checked with {@link Utils#checkDimensions(int, int)}; only the images that pass
+ * the check are actually decoded, from the same stream.
+ * <p/>
+ * <p>Images are decoded with source subsampling, so that they are not much larger than the
+ * {@link VisualIndexer#MAX_NUM_PIXELS} pixels they are scaled to for vectorization anyway; a large
+ * photo is never materialized at full resolution. The original dimensions are kept in the {@link Decoded} image.
+ * <p/>
+ * <p>SURF only looks at luminance, so unless {@link #GREYSCALE} is false images are decoded to
+ * {@link BufferedImage#TYPE_BYTE_GRAY}, a byte per pixel instead of three or four. When the reader supports it
+ * (e.g., JPEG, whose luma channel is copied as is) the colour channels are never converted to RGB;
+ * other images are converted right after decoding.
+ */
+public class ImageDecoder {
+
+    /**
+     * Whether images are decoded to greyscale (<samp>-Dreveal.decodeGreyscale</samp>).
+     */
+    public static final boolean GREYSCALE = Boolean.parseBoolean(System.getProperty("reveal.decodeGreyscale", "true"));
+
+    /**
+     * The readers of each thread, by provider. Creating a reader (in particular the JPEG one, with its
+     * native state) for every image is expensive, so readers are reset and reused by the thread that created them.
+     */
+    private static final ThreadLocal<Map<ImageReaderSpi, ImageReader>> READERS = new ThreadLocal<Map<ImageReaderSpi, ImageReader>>() {
+        @Override
+        protected Map<ImageReaderSpi, ImageReader> initialValue() {
+            return new HashMap<ImageReaderSpi, ImageReader>();
+        }
+    };
+    /**
+     * The buffer of each thread used to read streams to the end.
+     */
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    /**
+     * A decoded image, possibly subsampled, together with its original dimensions.
+     */
+    public static final class Decoded {
+        private final BufferedImage image;
+        private final int width;
+        private final int height;
+
+        public Decoded(BufferedImage image, int width, int height) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Wraps an image decoded at full resolution by other means, converting it to greyscale if {@link #GREYSCALE} is true.
+         */
+        public Decoded(BufferedImage image) {
+            this(GREYSCALE ? greyscale(image) : image, image.getWidth(), image.getHeight());
+        }
+
+        /**
+         * @return the decoded pixels.
+         */
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        /**
+         * @return the width of the original image.
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return the height of the original image.
+         */
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    /**
+     * Decides whether an image that passed the dimension check is decoded.
+     */
+    public interface DecodeFilter {
+        /**
+         * Called when the whole encoded image has been read from the stream, but before any pixel is decoded.
+         *
+         * @return true if the image must be decoded.
+         */
+        boolean decode();
+    }
+
+    /**
+     * Reads an image from a stream, if it is large enough.
+     *
+     * @param is the stream containing the encoded image; it is not closed.
+     * @return the decoded image, or {@code null} if the format is unknown or the image is too small.
+     */
+    public static Decoded read(InputStream is) throws IOException {
+        return read(is, null);
+    }
+
+    /**
+     * Reads an image from a stream, if it is large enough and the filter accepts it.
+     * <p/>
+     * <p>If there is a filter, once the dimensions are checked the rest of the stream is read in the
+     * cache that the reader decodes from anyway, so the stream is completely consumed when the filter is called.
+     *
+     * @param is     the stream containing the encoded image; it is not closed.
+     * @param filter a filter called before decoding, or {@code null}.
+     * @return the decoded image, or {@code null} if the format is unknown, the image is too small or the filter rejected it.
+     */
+    public static Decoded read(InputStream is, DecodeFilter filter) throws IOException {
+        final ImageInputStream iis = new MemoryCacheImageInputStream(is);
+        try {
+            final PipelineStats stats = PipelineStats.getInstance();
+            final ImageReader reader = reader(iis);
+            if (reader == null) {
+                stats.increment(PipelineStats.Counter.UNDECODABLE);
+                return null;
+            }
+            try {
+                reader.setInput(iis, filter == null, true);
+                final int width = reader.getWidth(0), height = reader.getHeight(0);
+                if (!Utils.checkDimensions(width, height)) {
+                    stats.increment(PipelineStats.Counter.REJECTED_DIMENSIONS);
+                    return null;
+                }
+                if (filter != null) {
+                    final long position = iis.getStreamPosition();
+                    final byte[] buffer = BUFFER.get();
+                    while (iis.read(buffer) != -1) ;
+                    iis.seek(position);
+                    if (!filter.decode()) return null;
+                }
+                final ImageReadParam param = reader.getDefaultReadParam();
+                final int step = subsampling(width, height, VisualIndexer.MAX_NUM_PIXELS);
+                if (step > 1) param.setSourceSubsampling(step, step, 0, 0);
+                if (GREYSCALE) {
+                    final ImageTypeSpecifier grey = greyscaleType(reader);
+                    if (grey != null) param.setDestinationType(grey);
+                }
+                final long start = System.nanoTime();
+                final BufferedImage image = reader.read(0, param);
+                final Decoded decoded = new Decoded(GREYSCALE ? greyscale(image) : image, width, height);
+                stats.record(PipelineStats.Stage.DECODE, start);
+                return decoded;
+            } finally {
+                reader.reset();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * Returns this thread's reader for the format of a stream, creating it if necessary.
+     * Readers are looked up in the same order as {@link javax.imageio.ImageIO#getImageReaders(Object)}.
+     *
+     * @return a reader, or {@code null} if the format is unknown.
+     */
+    private static ImageReader reader(ImageInputStream iis) throws IOException {
+        final Iterator<ImageReaderSpi> providers = IIORegistry.getDefaultInstance().getServiceProviders(ImageReaderSpi.class, true);
+        while (providers.hasNext()) {
+            final ImageReaderSpi provider = providers.next();
+            iis.mark();
+            final boolean canDecode;
+            try {
+                canDecode = provider.canDecodeInput(iis);
+            } finally {
+                iis.reset();
+            }
+            if (canDecode) {
+                final Map<ImageReaderSpi, ImageReader> readers = READERS.get();
+                ImageReader reader = readers.get(provider);
+                if (reader == null) readers.put(provider, reader = provider.createReaderInstance());
+                return reader;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the largest subsampling step that keeps at least a given number of pixels, so that
+     * the final scaling to that number of pixels is done on an image that is still large enough.
+     *
+     * @param width     the width of the image.
+     * @param height    the height of the image.
+     * @param maxPixels the number of pixels the image is going to be scaled to.
+     * @return the subsampling step, 1 if the image must be decoded at full resolution.
+     */
+    static int subsampling(int width, int height, int maxPixels) {
+        int step = 1;
+        while ((long) ((width + step) / (step + 1)) * ((height + step) / (step + 1)) >= maxPixels) step++;
+        return step;
+    }
+
+    /**
+     * @return the greyscale image type among those the reader can decode to, or {@code null}.
+     */
+    private static ImageTypeSpecifier greyscaleType(ImageReader reader) throws IOException {
+        for (Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0); types.hasNext(); ) {
+            final ImageTypeSpecifier type = types.next();
+            if (type.getBufferedImageType() == BufferedImage.TYPE_BYTE_GRAY) return type;
+        }
+        return null;
+    }
+
+    /**
+     * Converts an image to {@link BufferedImage#TYPE_BYTE_GRAY}, unless it is already.
+     */
+    public static BufferedImage greyscale(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) return image;
+        final BufferedImage grey = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+        final Graphics2D g = grey.createGraphics();
+        try {
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return grey;
+    }
+}
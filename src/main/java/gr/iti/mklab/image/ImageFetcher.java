@@ -0,0 +1,482 @@
+package gr.iti.mklab.image;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import gr.iti.mklab.bubing.ItiAgent;
+import gr.iti.mklab.bubing.store.ImageStore;
+import gr.iti.mklab.simmo.items.Image;
+import gr.iti.mklab.visual.utilities.ImageIOGreyScale;
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The stage downloading the images found inside HTML pages.
+ * <p/>
+ * <p>Parsing threads only hand over the image URLs through {@link #submit(URI, URI, String)};
+ * the download, decoding and indexing happen on a dedicated pool of {@link #FETCH_THREADS} threads
+ * fed by a queue of at most {@link #FETCH_QUEUE_SIZE} images. When the queue is full new images are
+ * dropped, so that a slow image host never stalls the parser.
+ * <p/>
+ * <p>Images are downloaded through the {@link ImageHttpClient}. An image whose host was requested too recently
+ * waits on a timer, not on a fetching thread, until {@link ImageHttpClient#reserve(URI)} allows it; at most
+ * {@link #FETCH_QUEUE_SIZE} images wait this way, and images that would wait too long are dropped. Dropped images
+ * give back the slot of their host and are not marked as seen, so they are tried again when found in other pages.
+ * <p/>
+ * <p>With {@link #PROBE_BYTES} set, only the first bytes of an image are requested, with a <samp>Range</samp> header;
+ * if its dimensions are in them and too small the image is rejected without downloading the rest, and the connection
+ * is kept. Servers ignoring ranges send the whole image, which is then read as a stream: a rejected image is not read
+ * further, at the cost of the connection. Either way at most {@link Utils#MAX_CONTENT_LENGTH} bytes are read.
+ * <p/>
+ * <p>When the agent has an {@link ImageStore}, the content of accepted images is kept as it is read and appended to
+ * {@link ImageStore#getArchive() its archive}, with the images crawled directly, together with their object id, the
+ * URL of their page and their alternative text.
+ */
+public class ImageFetcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageFetcher.class);
+
+    /**
+     * The number of threads downloading images (<samp>-Dreveal.fetchThreads</samp>).
+     */
+    public static final int FETCH_THREADS = Integer.getInteger("reveal.fetchThreads", 64);
+    /**
+     * The maximum number of images waiting to be downloaded (<samp>-Dreveal.fetchQueueSize</samp>).
+     */
+    public static final int FETCH_QUEUE_SIZE = Integer.getInteger("reveal.fetchQueueSize", 10000);
+    /**
+     * The number of bytes first requested to check the dimensions of an image, which is then requested again from where
+     * the probe stopped only if it is large enough (<samp>-Dreveal.imageProbeBytes</samp>); 0 requests whole images.
+     */
+    public static final int PROBE_BYTES = Integer.getInteger("reveal.imageProbeBytes", 0);
+    /**
+     * The maximum number of bytes left of a rejected image that are read to reuse the connection instead of dropping it.
+     */
+    private static final long DRAIN_LIMIT = 64 * 1024;
+
+    private static ImageFetcher uniqueInstance;
+
+    private final ThreadPoolExecutor executor;
+    /**
+     * The maximum number of images waiting to be downloaded, and of images waiting for their host.
+     */
+    private final int queueSize;
+    /**
+     * Queues the images waiting for their host to become available.
+     */
+    private final ScheduledExecutorService politeness;
+    /**
+     * The number of images waiting for their host to become available.
+     */
+    private final AtomicInteger delayed = new AtomicInteger();
+    /**
+     * The number of images dropped because the queue was full or their host was too busy.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    public static synchronized ImageFetcher getInstance() {
+        if (uniqueInstance == null)
+            uniqueInstance = new ImageFetcher();
+        return uniqueInstance;
+    }
+
+    private ImageFetcher() {
+        this(FETCH_THREADS, FETCH_QUEUE_SIZE);
+    }
+
+    /**
+     * Builds a fetcher with its own pool; the agent uses the {@link #getInstance() shared one}.
+     *
+     * @param threads   the number of threads downloading images.
+     * @param queueSize the maximum number of images waiting to be downloaded.
+     */
+    ImageFetcher(final int threads, final int queueSize) {
+        this.queueSize = queueSize;
+        executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("ImageFetcher-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        politeness = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("ImageFetcher-politeness").setDaemon(true).build());
+        final PipelineStats stats = PipelineStats.getInstance();
+        stats.addGauge("FetchQueueSize", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return getQueueSize();
+            }
+        });
+        stats.addGauge("FetchDelayed", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return getDelayedCount();
+            }
+        });
+        stats.addGauge("FetchDropped", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return getDroppedCount();
+            }
+        });
+    }
+
+    /**
+     * Queues an image for download. This method never blocks.
+     * <p/>
+     * <p>The URL of the image is claimed in {@link ItiAgent#uniqueImageUrls()} only when its download starts, so that
+     * an image dropped here is tried again when it is found in another page.
+     *
+     * @param imageUri the resolved URL of the image.
+     * @param pageUri  the URL of the page containing the image.
+     * @param altText  the alternative text of the image, or {@code null}.
+     * @return false if the image was dropped because the queue is full or its host is too busy.
+     */
+    public boolean submit(final URI imageUri, final URI pageUri, final String altText) {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                final PipelineStats stats = PipelineStats.getInstance();
+                // the same image may have been queued by several pages
+                if (!ItiAgent.uniqueImageUrls().claim(imageUri.toString())) {
+                    stats.increment(PipelineStats.Counter.URL_DUPLICATES);
+                    return;
+                }
+                try {
+                    fetch(imageUri, pageUri, altText);
+                } catch (Exception e) {
+                    stats.increment(PipelineStats.Counter.FETCH_ERRORS);
+                    ImageYield.getInstance().record(imageUri, false);
+                    if (LOGGER.isDebugEnabled()) LOGGER.debug("Could not fetch image " + imageUri, e);
+                }
+            }
+        };
+        final ImageHttpClient client = ImageHttpClient.getInstance();
+        final long slot = client.reserve(imageUri);
+        if (slot < 0) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        final long wait = slot - System.currentTimeMillis();
+        if (wait <= 0) return execute(task, imageUri, slot);
+        if (delayed.incrementAndGet() > queueSize) {
+            delayed.decrementAndGet();
+            client.release(imageUri, slot);
+            dropped.incrementAndGet();
+            return false;
+        }
+        politeness.schedule(new Runnable() {
+            @Override
+            public void run() {
+                delayed.decrementAndGet();
+                execute(task, imageUri, slot);
+            }
+        }, wait, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Runs a download task, giving back the slot reserved for its host if the queue is full.
+     */
+    private boolean execute(Runnable task, URI imageUri, long slot) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            ImageHttpClient.getInstance().release(imageUri, slot);
+            dropped.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of images waiting to be downloaded.
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of images waiting for their host to become available.
+     */
+    public int getDelayedCount() {
+        return delayed.get();
+    }
+
+    /**
+     * @return the number of images dropped so far because the queue was full or their host was too busy.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void fetch(URI imageUri, URI pageUri, String altText) throws IOException {
+        final String imageUrl = imageUri.toString();
+        final PipelineStats stats = PipelineStats.getInstance();
+        final ImageHttpClient client = ImageHttpClient.getInstance();
+        final long start = System.nanoTime();
+        final CloseableHttpResponse response = PROBE_BYTES > 0 ? client.get(imageUri, 0, PROBE_BYTES - 1, null) : client.get(imageUri);
+        CloseableHttpResponse rest = null;
+        try {
+            stats.record(PipelineStats.Stage.FETCH, start);
+            final int status = response.getStatusLine().getStatusCode();
+            final HttpEntity entity = response.getEntity();
+            if (status != HttpStatus.SC_OK && status != HttpStatus.SC_PARTIAL_CONTENT || entity == null) {
+                stats.increment(PipelineStats.Counter.FETCH_ERRORS);
+                ImageYield.getInstance().record(imageUri, false);
+                return;
+            }
+            final boolean partial = status == HttpStatus.SC_PARTIAL_CONTENT;
+            long length = partial ? totalLength(response) : entity.getContentLength();
+            final Header contentType = entity.getContentType();
+            if (contentType == null || !Utils.checkContentHeaders(length, contentType.getValue())) {
+                // closing the response without reading the content drops the connection, which is cheaper than reading it
+                stats.increment(PipelineStats.Counter.REJECTED_HEADERS);
+                ImageYield.getInstance().record(imageUri, false);
+                return;
+            }
+
+            InputStream content = entity.getContent();
+            if (partial) {
+                // the probe is read completely, so that the connection is reused even if the image is rejected
+                final byte[] probe = ByteStreams.toByteArray(ByteStreams.limit(content, PROBE_BYTES));
+                final long dimensions = ImageHeaders.dimensions(probe, probe.length);
+                if (dimensions != ImageHeaders.UNKNOWN && !Utils.checkDimensions(ImageHeaders.width(dimensions), ImageHeaders.height(dimensions))) {
+                    stats.increment(PipelineStats.Counter.REJECTED_DIMENSIONS);
+                    stats.add(PipelineStats.Counter.IMAGE_BYTES, probe.length);
+                    ImageYield.getInstance().record(imageUri, false);
+                    return;
+                }
+                if (probe.length < PROBE_BYTES || probe.length == length) content = new ByteArrayInputStream(probe);
+                else {
+                    rest = client.get(imageUri, probe.length, -1, validator(response));
+                    final int restStatus = rest.getStatusLine().getStatusCode();
+                    final HttpEntity restEntity = rest.getEntity();
+                    if (restStatus != HttpStatus.SC_OK && restStatus != HttpStatus.SC_PARTIAL_CONTENT || restEntity == null) {
+                        stats.increment(PipelineStats.Counter.FETCH_ERRORS);
+                        ImageYield.getInstance().record(imageUri, false);
+                        return;
+                    }
+                    if (restStatus == HttpStatus.SC_PARTIAL_CONTENT)
+                        content = new SequenceInputStream(new ByteArrayInputStream(probe), restEntity.getContent());
+                    else {
+                        // the image has changed since the probe, and is sent again from the start
+                        content = restEntity.getContent();
+                        length = restEntity.getContentLength();
+                    }
+                }
+            }
+
+            final ImageArchive archive = ImageStore.getArchive();
+            final CopyingInputStream copy = archive == null ? null : new CopyingInputStream(content);
+            final CountingInputStream is = new CountingInputStream(new BudgetInputStream(copy == null ? content : copy, Utils.MAX_CONTENT_LENGTH));
+            try {
+                ImageDecoder.Decoded image = null;
+                try {
+                    image = ImageDecoder.read(is);
+                } catch (IllegalArgumentException e) {
+                    // this exception is probably thrown because of a greyscale jpeg image
+                    LOGGER.debug("Retrying {} as greyscale: {}", imageUrl, e.getMessage());
+                    BufferedImage grey = ImageIOGreyScale.read(is); // retry with the modified class
+                    if (grey != null) image = new ImageDecoder.Decoded(grey);
+                }
+
+                final boolean accepted = Utils.checkImage(image);
+                ImageYield.getInstance().record(imageUri, accepted);
+                final ObjectId id = new ObjectId();
+                if (accepted) {
+
+                    Image item = new Image();
+                    item.setUrl(imageUrl);
+                    item.setTitle(altText);
+                    item.setWidth(image.getWidth());
+                    item.setHeight(image.getHeight());
+                    item.setWebPageUrl(pageUri.toString());
+                    final Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+                    if (lastModified != null) item.setLastModifiedDate(DateUtils.parseDate(lastModified.getValue()));
+                    item.setObjectId(id);
+
+                    try {
+                        VisualIndexer.getInstance().indexAndStore(image.getImage(), item);
+                    } catch (Exception e) {
+                        LOGGER.warn("Could not index " + imageUrl, e);
+                    }
+                }
+                // read what the decoder left, so that the connection can be reused, unless it is most of a rejected image
+                if (accepted || length >= 0 && length - is.getCount() <= DRAIN_LIMIT) {
+                    ByteStreams.copy(is, ByteStreams.nullOutputStream());
+                    is.close();
+                }
+                if (accepted && copy != null) {
+                    final ImageArchive.Record record = new ImageArchive.Record(imageUrl, System.currentTimeMillis(), HttpStatus.SC_OK,
+                            archivedHeaders(rest != null && rest.getStatusLine().getStatusCode() == HttpStatus.SC_OK ? rest : response, id, pageUri, altText),
+                            copy.toByteArray());
+                    if (!archive.append(record) && LOGGER.isDebugEnabled()) LOGGER.debug("Archive queue full, dropped {}", imageUri);
+                }
+            } finally {
+                stats.add(PipelineStats.Counter.IMAGE_BYTES, is.getCount());
+            }
+        } finally {
+            if (rest != null) rest.close();
+            response.close();
+        }
+    }
+
+    /**
+     * @return the length of the whole content from the <samp>Content-Range</samp> header of a partial response, or -1.
+     */
+    private static long totalLength(HttpResponse response) {
+        final Header contentRange = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+        if (contentRange == null) return -1;
+        final String value = contentRange.getValue();
+        try {
+            return Long.parseLong(value.substring(value.lastIndexOf('/') + 1).trim());
+        } catch (NumberFormatException e) {
+            // "*": unknown
+            return -1;
+        }
+    }
+
+    /**
+     * @return the headers of a response worth archiving with its whole, decoded content: all but those describing
+     * the range and encoding of the content as it was transferred, followed by the {@linkplain ImageArchive#ID_HEADER id},
+     * {@linkplain ImageArchive#PAGE_URL_HEADER page} and {@linkplain ImageArchive#ALT_TEXT_HEADER alternative text}
+     * of the image.
+     */
+    static Header[] archivedHeaders(HttpResponse response, ObjectId id, URI pageUri, String altText) {
+        final List<Header> headers = new ArrayList<Header>();
+        for (Header header : response.getAllHeaders()) {
+            final String name = header.getName();
+            if (!name.equalsIgnoreCase(HttpHeaders.CONTENT_RANGE) && !name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)
+                    && !name.equalsIgnoreCase(HttpHeaders.CONTENT_ENCODING) && !name.equalsIgnoreCase(HttpHeaders.TRANSFER_ENCODING)
+                    && !ImageArchive.isArchiveHeader(name))
+                headers.add(header);
+        }
+        headers.add(new BasicHeader(ImageArchive.ID_HEADER, id.toString()));
+        headers.add(new BasicHeader(ImageArchive.PAGE_URL_HEADER, pageUri.toString()));
+        if (altText != null) headers.add(new BasicHeader(ImageArchive.ALT_TEXT_HEADER, altText));
+        return headers.toArray(new Header[headers.size()]);
+    }
+
+    /**
+     * @return the header identifying the version of the content of a response for <samp>If-Range</samp>, or {@code null}.
+     */
+    private static Header validator(HttpResponse response) {
+        // weak entity tags cannot be used with If-Range
+        final Header eTag = response.getFirstHeader(HttpHeaders.ETAG);
+        if (eTag != null && !eTag.getValue().startsWith("W/")) return eTag;
+        return response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+    }
+
+    /**
+     * A stream keeping a copy of the bytes read from it.
+     */
+    private static final class CopyingInputStream extends FilterInputStream {
+        private final FastByteArrayOutputStream copy = new FastByteArrayOutputStream();
+
+        CopyingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) copy.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) copy.write(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) return 0;
+            // skipped bytes are read, to be copied
+            final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            for (int r; skipped < n && (r = read(buffer, 0, (int) Math.min(n - skipped, buffer.length))) > 0; ) skipped += r;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(copy.array, copy.length);
+        }
+    }
+
+    /**
+     * A stream failing once more than a given number of bytes have been read from it.
+     */
+    private static final class BudgetInputStream extends FilterInputStream {
+        private long budget;
+
+        BudgetInputStream(InputStream in, long budget) {
+            super(in);
+            this.budget = budget;
+        }
+
+        private void consume(long n) throws IOException {
+            if ((budget -= n) < 0) throw new IOException("Image larger than " + Utils.MAX_CONTENT_LENGTH + " bytes");
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) consume(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) consume(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = in.skip(n);
+            consume(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
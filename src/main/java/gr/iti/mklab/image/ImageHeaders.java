@@ -0,0 +1,96 @@
+package gr.iti.mklab.image;
+
+/**
+ * Reads the dimensions of an image from the first bytes of its content, without an {@link javax.imageio.ImageReader}:
+ * it is used on the few kilobytes of a probe, where a reader would fail on the truncated content.
+ * <p/>
+ * <p>JPEG, PNG, GIF and BMP are recognized, i.e., the formats {@link ImageDecoder} decodes. The dimensions are returned
+ * packed in a long, to be unpacked with {@link #width(long)} and {@link #height(long)}.
+ */
+public class ImageHeaders {
+
+    /**
+     * The dimensions of an image whose format is not recognized or whose header is not in the bytes available.
+     */
+    public static final long UNKNOWN = -1;
+
+    private ImageHeaders() {
+    }
+
+    /**
+     * @param b      the first bytes of the content of an image.
+     * @param length the number of bytes available.
+     * @return the dimensions of the image, or {@link #UNKNOWN}.
+     */
+    public static long dimensions(final byte[] b, final int length) {
+        if (length >= 2 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xD8) return jpeg(b, length);
+        if (length >= 24 && (b[0] & 0xFF) == 0x89 && b[1] == 'P' && b[2] == 'N' && b[3] == 'G'
+                && b[12] == 'I' && b[13] == 'H' && b[14] == 'D' && b[15] == 'R')
+            return pack(bigEndian32(b, 16), bigEndian32(b, 20));
+        if (length >= 10 && b[0] == 'G' && b[1] == 'I' && b[2] == 'F')
+            return pack(littleEndian16(b, 6), littleEndian16(b, 8));
+        if (length >= 26 && b[0] == 'B' && b[1] == 'M') {
+            // OS/2 bitmaps have 16-bit dimensions; the height of bottom-up bitmaps is negative
+            if (littleEndian32(b, 14) == 12) return pack(littleEndian16(b, 18), littleEndian16(b, 20));
+            return pack(littleEndian32(b, 18), Math.abs(littleEndian32(b, 22)));
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Walks the JPEG segments up to the start of frame, which contains the dimensions.
+     */
+    private static long jpeg(final byte[] b, final int length) {
+        int i = 2;
+        for (; ; ) {
+            if (i >= length || (b[i] & 0xFF) != 0xFF) return UNKNOWN;
+            while (i < length && (b[i] & 0xFF) == 0xFF) i++; // fill bytes
+            if (i >= length) return UNKNOWN;
+            final int marker = b[i++] & 0xFF;
+            if (marker == 0x01 || marker >= 0xD0 && marker <= 0xD8) continue; // no payload
+            if (marker == 0xD9 || marker == 0xDA) return UNKNOWN; // end of image or scan data before a frame
+            if (i + 2 > length) return UNKNOWN;
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                // length, precision, height, width
+                if (i + 7 > length) return UNKNOWN;
+                return pack(bigEndian16(b, i + 5), bigEndian16(b, i + 3));
+            }
+            i += bigEndian16(b, i);
+        }
+    }
+
+    private static long pack(final int width, final int height) {
+        if (width < 0 || height < 0) return UNKNOWN;
+        return (long) width << 32 | height;
+    }
+
+    /**
+     * @return the width of packed dimensions.
+     */
+    public static int width(final long dimensions) {
+        return (int) (dimensions >>> 32);
+    }
+
+    /**
+     * @return the height of packed dimensions.
+     */
+    public static int height(final long dimensions) {
+        return (int) dimensions;
+    }
+
+    private static int bigEndian16(final byte[] b, final int offset) {
+        return (b[offset] & 0xFF) << 8 | b[offset + 1] & 0xFF;
+    }
+
+    private static int bigEndian32(final byte[] b, final int offset) {
+        return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16 | (b[offset + 2] & 0xFF) << 8 | b[offset + 3] & 0xFF;
+    }
+
+    private static int littleEndian16(final byte[] b, final int offset) {
+        return b[offset] & 0xFF | (b[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int littleEndian32(final byte[] b, final int offset) {
+        return b[offset] & 0xFF | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16 | (b[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,206 @@
+package gr.iti.mklab.image;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.unimi.di.law.bubing.RuntimeConfiguration;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The HTTP client shared by everything downloading images outside of BUbiNG.
+ * <p/>
+ * <p>Connections are pooled and kept alive, at most {@link #MAX_CONNECTIONS_PER_HOST} per host and
+ * {@link #MAX_CONNECTIONS} overall; connections idle for more than {@link #IDLE_TIME} milliseconds are closed.
+ * Timeouts, the user agent and the delay between two requests to the same host are taken from BUbiNG's
+ * {@link RuntimeConfiguration} once {@link #configure(RuntimeConfiguration)} has been called (the stores do it),
+ * and follow its changes; until then, the timeouts of {@link VisualIndexer} are used and requests are not delayed.
+ */
+public class ImageHttpClient {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageHttpClient.class);
+
+    /**
+     * The maximum number of open connections (<samp>-Dreveal.httpMaxConnections</samp>).
+     */
+    public static final int MAX_CONNECTIONS = Integer.getInteger("reveal.httpMaxConnections", 2 * ImageFetcher.FETCH_THREADS);
+    /**
+     * The maximum number of open connections to a host (<samp>-Dreveal.httpMaxConnectionsPerHost</samp>).
+     */
+    public static final int MAX_CONNECTIONS_PER_HOST = Integer.getInteger("reveal.httpMaxConnectionsPerHost", 4);
+    /**
+     * The maximum time in milliseconds a request may be delayed for politeness (<samp>-Dreveal.maxPolitenessWait</samp>);
+     * requests that would wait longer are not made.
+     */
+    public static final long MAX_POLITENESS_WAIT = Long.getLong("reveal.maxPolitenessWait", 60000);
+    /**
+     * The time in milliseconds after which idle connections are closed.
+     */
+    public static final long IDLE_TIME = 30000;
+
+    private static ImageHttpClient uniqueInstance;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private final ScheduledExecutorService monitor;
+    /**
+     * The time from which each host may be requested again, in milliseconds.
+     */
+    private final ConcurrentMap<String, AtomicLong> nextRequest = new ConcurrentHashMap<String, AtomicLong>();
+    private volatile RuntimeConfiguration rc;
+
+    public static synchronized ImageHttpClient getInstance() {
+        if (uniqueInstance == null)
+            uniqueInstance = new ImageHttpClient();
+        return uniqueInstance;
+    }
+
+    private ImageHttpClient() {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_HOST);
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom().setCookieSpec(CookieSpecs.IGNORE_COOKIES).build())
+                // images are compressed already, and ranges must refer to the bytes of the image
+                .disableContentCompression()
+                .build();
+
+        monitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("ImageHttpClient-monitor").setDaemon(true).build());
+        monitor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(IDLE_TIME, TimeUnit.MILLISECONDS);
+                final long now = System.currentTimeMillis();
+                for (Iterator<AtomicLong> i = nextRequest.values().iterator(); i.hasNext(); )
+                    if (i.next().get() < now) i.remove();
+            }
+        }, IDLE_TIME / 6, IDLE_TIME / 6, TimeUnit.MILLISECONDS);
+
+        final PipelineStats stats = PipelineStats.getInstance();
+        stats.addGauge("HttpLeasedConnections", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return connectionManager.getTotalStats().getLeased();
+            }
+        });
+        stats.addGauge("HttpIdleConnections", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return connectionManager.getTotalStats().getAvailable();
+            }
+        });
+        stats.addGauge("HttpPendingRequests", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return connectionManager.getTotalStats().getPending();
+            }
+        });
+    }
+
+    /**
+     * Takes timeouts, user agent and politeness delay from now on from a runtime configuration.
+     */
+    public void configure(RuntimeConfiguration rc) {
+        this.rc = rc;
+        LOGGER.info("Image downloads use the timeouts and delays of the crawl");
+    }
+
+    /**
+     * Issues a GET request. The response must be closed, after consuming its content if the connection is to be reused.
+     */
+    public CloseableHttpResponse get(URI uri) throws IOException {
+        return execute(new HttpGet(uri));
+    }
+
+    /**
+     * Issues a GET request for a range of bytes. The server may ignore the range and send the whole content, with
+     * status 200 instead of 206.
+     *
+     * @param first     the first byte requested.
+     * @param last      the last byte requested, or -1 for the rest of the content.
+     * @param validator the <samp>ETag</samp> or <samp>Last-Modified</samp> header of a previous response, to get
+     *                  the whole content instead of the range if it has changed since, or {@code null}.
+     * @see #get(URI)
+     */
+    public CloseableHttpResponse get(URI uri, long first, long last, Header validator) throws IOException {
+        final HttpGet request = new HttpGet(uri);
+        request.setHeader(HttpHeaders.RANGE, "bytes=" + first + "-" + (last < 0 ? "" : Long.toString(last)));
+        if (validator != null) request.setHeader(HttpHeaders.IF_RANGE, validator.getValue());
+        return execute(request);
+    }
+
+    private CloseableHttpResponse execute(HttpGet request) throws IOException {
+        final RuntimeConfiguration rc = this.rc;
+        final int connectionTimeout = rc == null ? VisualIndexer.connectionTimeout : rc.connectionTimeout;
+        request.setConfig(RequestConfig.custom()
+                .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
+                .setConnectTimeout(connectionTimeout)
+                .setConnectionRequestTimeout(connectionTimeout)
+                .setSocketTimeout(rc == null ? VisualIndexer.readTimeout : rc.socketTimeout)
+                .build());
+        if (rc != null && rc.userAgent != null) request.setHeader(HttpHeaders.USER_AGENT, rc.userAgent);
+        return client.execute(request);
+    }
+
+    /**
+     * Reserves the next slot for a request to the host of a URI, at least BUbiNG's <samp>schemeAuthorityDelay</samp>
+     * after the previous one.
+     *
+     * @return the time, as given by {@link System#currentTimeMillis()}, from which the request may be made, or -1 if
+     * it should not be made because it would wait more than {@link #MAX_POLITENESS_WAIT} milliseconds.
+     * @see #release(URI, long)
+     */
+    public long reserve(URI uri) {
+        final long delay = delay();
+        if (delay <= 0 || uri.getHost() == null) return System.currentTimeMillis();
+        final String host = uri.getHost().toLowerCase();
+        AtomicLong next = nextRequest.get(host);
+        if (next == null) {
+            final AtomicLong previous = nextRequest.putIfAbsent(host, next = new AtomicLong());
+            if (previous != null) next = previous;
+        }
+        for (; ; ) {
+            final long now = System.currentTimeMillis();
+            final long n = next.get();
+            final long start = Math.max(now, n);
+            if (start - now > MAX_POLITENESS_WAIT) return -1;
+            if (next.compareAndSet(n, start + delay)) return start;
+        }
+    }
+
+    /**
+     * Gives back a slot reserved for a request that will not be made, unless a later slot has been reserved since.
+     *
+     * @param slot the time returned by {@link #reserve(URI)}.
+     */
+    public void release(URI uri, long slot) {
+        final long delay = delay();
+        if (delay <= 0 || slot < 0 || uri.getHost() == null) return;
+        final AtomicLong next = nextRequest.get(uri.getHost().toLowerCase());
+        if (next != null) next.compareAndSet(slot + delay, slot);
+    }
+
+    private long delay() {
+        final RuntimeConfiguration rc = this.rc;
+        return rc == null ? 0 : rc.schemeAuthorityDelay;
+    }
+}
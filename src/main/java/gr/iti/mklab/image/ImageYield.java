@@ -0,0 +1,167 @@
+package gr.iti.mklab.image;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * How often the images of a host, and of a folder of a host, turn out to be worth indexing, used to stop fetching
+ * candidates from hosts serving only icons, ads and thumbnails.
+ * <p/>
+ * <p>For each host and each folder (the first two segments of the path) the model keeps the number of images fetched
+ * and the number of images accepted, in a count-min sketch of {@link #DEPTH} rows of {@link #WIDTH} cells: its memory
+ * is fixed whatever the number of hosts. Each cell packs both counters in a long, so that they are updated together with
+ * a single compare-and-swap; the estimate of a key is taken from the row where it has the fewest fetched images, i.e.,
+ * the least colliding one. The counters of a folder are used once it has {@link #MIN_SAMPLES} fetched images, those of
+ * the host otherwise.
+ * <p/>
+ * <p>Candidates whose accepted fraction is below {@link #MIN_YIELD} are not fetched, except one in {@link #PROBE_RATE},
+ * and every {@link #DECAY_INTERVAL} fetched images all counters are halved: old outcomes fade, and a host whose images
+ * improve comes back.
+ */
+public class ImageYield {
+
+    /**
+     * The number of cells of each row of the sketch (<samp>-Dreveal.yieldSketchWidth</samp>), rounded up to a power of two.
+     */
+    public static final int WIDTH = Integer.highestOneBit(Math.max(1, Integer.getInteger("reveal.yieldSketchWidth", 1 << 18) - 1) << 1);
+    /**
+     * The number of rows of the sketch.
+     */
+    public static final int DEPTH = 4;
+    /**
+     * The fraction of accepted images below which the candidates of a host are skipped (<samp>-Dreveal.minImageYield</samp>).
+     */
+    public static final double MIN_YIELD = Double.parseDouble(System.getProperty("reveal.minImageYield", "0.02"));
+    /**
+     * The number of fetched images needed before deciding about a host or a folder (<samp>-Dreveal.yieldSamples</samp>).
+     */
+    public static final int MIN_SAMPLES = Integer.getInteger("reveal.yieldSamples", 30);
+    /**
+     * One in this many skipped candidates is fetched anyway, to follow the changes of a host (<samp>-Dreveal.yieldProbeRate</samp>).
+     */
+    public static final int PROBE_RATE = Integer.getInteger("reveal.yieldProbeRate", 32);
+    /**
+     * The number of fetched images after which all counters are halved.
+     */
+    public static final long DECAY_INTERVAL = 8L * WIDTH;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    /**
+     * A fetched image, in the upper half of a cell.
+     */
+    private static final long FETCHED = 1L << 32;
+    private static final long ACCEPTED = 1L;
+    /**
+     * The counters halved, without the bit moving from the upper half to the lower one.
+     */
+    private static final long HALF_MASK = 0x7FFFFFFF7FFFFFFFL;
+
+    private static ImageYield uniqueInstance;
+
+    private final AtomicLongArray cells = new AtomicLongArray(DEPTH * WIDTH);
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    public static synchronized ImageYield getInstance() {
+        if (uniqueInstance == null)
+            uniqueInstance = new ImageYield();
+        return uniqueInstance;
+    }
+
+    /**
+     * Decides whether a candidate image should be fetched.
+     *
+     * @return false if the host or folder of the image rarely yields acceptable images and this is not a probe.
+     */
+    public boolean admit(URI uri) {
+        final String host = uri.getHost();
+        if (host == null) return true;
+        long cell = estimate(folderHash(host, uri.getRawPath()));
+        if (fetched(cell) < MIN_SAMPLES) {
+            cell = estimate(hostHash(host));
+            if (fetched(cell) < MIN_SAMPLES) return true;
+        }
+        if (accepted(cell) >= MIN_YIELD * fetched(cell)) return true;
+        if (skipped.incrementAndGet() % PROBE_RATE == 0) return true;
+        PipelineStats.getInstance().increment(PipelineStats.Counter.LOW_YIELD);
+        return false;
+    }
+
+    /**
+     * Records the outcome of a fetched candidate.
+     *
+     * @param accepted whether the image was indexed; images rejected because of their headers, dimensions or format,
+     *                 or that could not be downloaded, are not.
+     */
+    public void record(URI uri, boolean accepted) {
+        final String host = uri.getHost();
+        if (host == null) return;
+        final long delta = accepted ? FETCHED | ACCEPTED : FETCHED;
+        add(hostHash(host), delta);
+        add(folderHash(host, uri.getRawPath()), delta);
+        if (updates.incrementAndGet() % DECAY_INTERVAL == 0) decay();
+    }
+
+    private static HashCode hostHash(String host) {
+        return HASH_FUNCTION.hashString(host.toLowerCase(), Charsets.UTF_8);
+    }
+
+    private static HashCode folderHash(String host, String path) {
+        int end = 0;
+        if (path != null) {
+            // the path up to its third slash, or its last one
+            for (int i = 0, slashes = 0; (i = path.indexOf('/', i) + 1) > 0 && slashes++ < 3; ) end = i;
+        }
+        return HASH_FUNCTION.newHasher().putString(host.toLowerCase(), Charsets.UTF_8).putString(path == null ? "" : path.substring(0, end), Charsets.UTF_8).hash();
+    }
+
+    /**
+     * @return the index of the cell of a key in a row, taken from its own 32 bits of the hash.
+     */
+    private static int index(byte[] hash, int row) {
+        final int offset = 4 * row;
+        final int h = (hash[offset] & 0xFF) | (hash[offset + 1] & 0xFF) << 8 | (hash[offset + 2] & 0xFF) << 16 | hash[offset + 3] << 24;
+        return row * WIDTH + (h & (WIDTH - 1));
+    }
+
+    private void add(HashCode hash, long delta) {
+        final byte[] bytes = hash.asBytes();
+        for (int row = 0; row < DEPTH; row++) {
+            final int index = index(bytes, row);
+            for (long value; !cells.compareAndSet(index, value = cells.get(index), value + delta); ) ;
+        }
+    }
+
+    /**
+     * @return the cell of the row where the key has the fewest fetched images.
+     */
+    private long estimate(HashCode hash) {
+        final byte[] bytes = hash.asBytes();
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            final long value = cells.get(index(bytes, row));
+            if (fetched(value) < fetched(min)) min = value;
+        }
+        return min;
+    }
+
+    private void decay() {
+        final int length = cells.length();
+        for (int i = 0; i < length; i++)
+            for (long value; !cells.compareAndSet(i, value = cells.get(i), (value >>> 1) & HALF_MASK); ) ;
+    }
+
+    private static long fetched(long cell) {
+        return cell >>> 32;
+    }
+
+    private static long accepted(long cell) {
+        return cell & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,94 @@
+package gr.iti.mklab.image;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies, with logarithmic buckets.
+ * <p/>
+ * <p>Latencies are recorded in microseconds. Each power of two is split in {@link #SUB_BUCKETS} buckets,
+ * so percentiles are reported with a relative error of at most 1/{@link #SUB_BUCKETS}; recording costs
+ * a few arithmetic operations and an atomic increment.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        final int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value in microseconds falling in a bucket.
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        final long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        for (long m; micros > (m = max.get()) && !max.compareAndSet(m, micros); ) ;
+    }
+
+    /**
+     * @return the number of recorded latencies.
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * @return the average latency in milliseconds.
+     */
+    public double mean() {
+        final long n = count.get();
+        return n == 0 ? 0 : total.get() / 1000.0 / n;
+    }
+
+    /**
+     * @return the maximum latency in milliseconds.
+     */
+    public double max() {
+        return max.get() / 1000.0;
+    }
+
+    /**
+     * Returns a percentile of the recorded latencies.
+     *
+     * @param p a percentile, between 0 and 100.
+     * @return the latency in milliseconds below which {@code p}% of the latencies fall (rounded up to its bucket).
+     */
+    public double percentile(double p) {
+        final long n = count.get();
+        if (n == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get()) / 1000.0;
+        }
+        return max();
+    }
+}
@@ -0,0 +1,235 @@
+package gr.iti.mklab.image;
+
+import com.google.common.base.Charsets;
+import gr.iti.mklab.visual.aggregation.AbstractFeatureAggregator;
+import gr.iti.mklab.visual.dimreduction.PCA;
+import gr.iti.mklab.visual.extraction.AbstractFeatureExtractor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A compact binary format for the learning files, and its converter.
+ * <p/>
+ * <p>A binary file starts with a header of four integers (a magic number, the number of quantizers,
+ * the number of centroids per quantizer and the length of the centroids) followed by all centroids
+ * as native-order doubles. Files are read by memory-mapping them, which is much faster than parsing
+ * the original text files.
+ * <p/>
+ * <p>The library takes the codebooks and the quantizers as arrays, so those are copied onto the heap, once
+ * per agent (see {@link SegmentedIndex}). The PCA, by far the largest file, is used directly from the mapping
+ * by {@link MappedPCA}: its pages come from the page cache, which the agents of a machine share.
+ * <p/>
+ * <p>Run {@link #main(String[])} once on a learning folder to write the binary files next to the text ones;
+ * {@link VisualIndexer} uses them when they are present. Since doubles are stored in native order, convert
+ * the files on a machine with the same endianness as the crawler.
+ */
+public class LearningFiles {
+
+    private static final int MAGIC = 0x52564c51; // "RVLQ"
+    private static final int HEADER_SIZE = 4 * 4;
+
+    /**
+     * The binary file holding the four SURF codebooks.
+     */
+    public static final String CODEBOOKS_FILE = "surf_l2_128c_4x.bin";
+
+    /**
+     * The CSV files of the four SURF codebooks, relative to the learning folder.
+     */
+    public static final String[] CODEBOOK_CSV_FILES = {
+            "surf_l2_128c_0.csv",
+            "surf_l2_128c_1.csv",
+            "surf_l2_128c_2.csv",
+            "surf_l2_128c_3.csv"
+    };
+
+    /**
+     * The CSV file of the coarse quantizer of the index, relative to the learning folder.
+     */
+    public static final String COARSE_QUANTIZER_CSV_FILE = "qcoarse_1024d_8192k.csv";
+    /**
+     * The CSV file of the product quantizer of the index, relative to the learning folder.
+     */
+    public static final String PRODUCT_QUANTIZER_CSV_FILE = "pq_1024_64x8_rp_ivf_8192k.csv";
+    /**
+     * The text file of the PCA of the VLAD vectors, relative to the learning folder.
+     */
+    public static final String PCA_TEXT_FILE = "pca_surf_4x128_32768to1024.txt";
+
+    /**
+     * The length of the vectors the PCA projects to, and the quantizers are learned on.
+     */
+    public static final int VECTOR_LENGTH = 1024;
+    public static final int NUM_COARSE_CENTROIDS = 8192;
+    public static final int NUM_SUBVECTORS = 64;
+    public static final int NUM_PRODUCT_CENTROIDS = 256;
+
+    /**
+     * The number of random samples the converted PCA is checked on.
+     */
+    private static final int PCA_CHECKS = 8;
+
+    /**
+     * @return the binary file of a text learning file: the same file, with the <samp>.bin</samp> extension.
+     */
+    public static File binaryFile(String file) {
+        final int dot = file.lastIndexOf('.');
+        return new File((dot > file.lastIndexOf(File.separatorChar) ? file.substring(0, dot) : file) + ".bin");
+    }
+
+    /**
+     * Writes quantizers in binary format.
+     */
+    public static void writeQuantizers(double[][][] quantizers, File file) throws IOException {
+        final int numCentroids = quantizers[0].length, length = quantizers[0][0].length;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final long size = HEADER_SIZE + 8L * quantizers.length * numCentroids * length;
+            raf.setLength(size);
+            final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            buffer.putInt(MAGIC).putInt(quantizers.length).putInt(numCentroids).putInt(length);
+            final DoubleBuffer doubles = buffer.asDoubleBuffer();
+            for (double[][] quantizer : quantizers)
+                for (double[] centroid : quantizer) doubles.put(centroid);
+            buffer.force();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads quantizers written by {@link #writeQuantizers(double[][][], File)}.
+     */
+    public static double[][][] readQuantizers(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            buffer.order(ByteOrder.nativeOrder());
+            if (buffer.getInt() != MAGIC) throw new IOException(file + " is not a binary learning file");
+            final int numQuantizers = buffer.getInt(), numCentroids = buffer.getInt(), length = buffer.getInt();
+            final DoubleBuffer doubles = buffer.asDoubleBuffer();
+            final double[][][] quantizers = new double[numQuantizers][numCentroids][length];
+            for (double[][] quantizer : quantizers)
+                for (double[] centroid : quantizer) doubles.get(centroid);
+            return quantizers;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Maps the centroids of a file written by {@link #writeQuantizers(double[][][], File)}, without copying them.
+     * The mapping stays valid after the file is closed.
+     *
+     * @return the centroids, one after the other.
+     * @throws IOException if the file does not hold quantizers of the given shape.
+     */
+    public static DoubleBuffer mapQuantizers(File file, int numQuantizers, int numCentroids, int length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            buffer.order(ByteOrder.nativeOrder());
+            if (buffer.getInt() != MAGIC) throw new IOException(file + " is not a binary learning file");
+            if (buffer.getInt() != numQuantizers || buffer.getInt() != numCentroids || buffer.getInt() != length
+                    || buffer.remaining() != 8L * numQuantizers * numCentroids * length)
+                throw new IOException(file + " does not hold " + numQuantizers + " quantizers of " + numCentroids + " centroids of length " + length);
+            return buffer.asDoubleBuffer();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Converts the text file of a PCA to the binary format read by {@link MappedPCA}, and checks that the
+     * result projects random samples as {@link PCA} does; if it does not, the binary file is deleted.
+     */
+    public static void convertPCA(File text, File binary, int numComponents, int sampleSize) throws Exception {
+        final double[][] rows = new double[numComponents + 2][];
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(text), Charsets.US_ASCII));
+        try {
+            // the means, the eigenvalues (of which only the first ones are used), and a component per line
+            rows[0] = parseLine(in.readLine(), sampleSize, text);
+            rows[1] = Arrays.copyOf(parseLine(in.readLine(), numComponents, text), sampleSize);
+            for (int i = 0; i < numComponents; i++) rows[i + 2] = parseLine(in.readLine(), sampleSize, text);
+        } finally {
+            in.close();
+        }
+        writeQuantizers(new double[][][]{rows}, binary);
+
+        final PCA pca = new PCA(numComponents, 1, sampleSize, true);
+        pca.loadPCAFromFile(text.getPath());
+        final MappedPCA mapped = new MappedPCA(binary, numComponents, sampleSize, true);
+        final Random random = new Random(0);
+        for (int n = 0; n < PCA_CHECKS; n++) {
+            final double[] sample = new double[sampleSize];
+            for (int i = 0; i < sampleSize; i++) sample[i] = random.nextGaussian();
+            final double[] expected = pca.sampleToEigenSpace(sample.clone()), actual = mapped.sampleToEigenSpace(sample.clone());
+            for (int i = 0; i < numComponents; i++)
+                if (Math.abs(expected[i] - actual[i]) > 1E-9 * Math.max(1, Math.abs(expected[i]))) {
+                    binary.delete();
+                    throw new IOException("The binary PCA does not project as " + text + " does: not converted");
+                }
+        }
+    }
+
+    /**
+     * @return the first values of a line of numbers separated by spaces or commas.
+     */
+    private static double[] parseLine(String line, int length, File file) throws IOException {
+        if (line == null) throw new IOException(file + " is too short");
+        final String[] fields = line.trim().split("[\\s,]+");
+        if (fields.length < length) throw new IOException(file + " has a line of " + fields.length + " values, expected " + length);
+        final double[] values = new double[length];
+        for (int i = 0; i < length; i++) values[i] = Double.parseDouble(fields[i]);
+        return values;
+    }
+
+    /**
+     * Converts the learning files of a learning folder: the codebooks to {@link #CODEBOOKS_FILE}, and the quantizers
+     * and the PCA to their {@link #binaryFile(String)}. Converting the PCA takes a heap of a couple of gigabytes.
+     *
+     * @param arg the learning folder.
+     */
+    public static void main(String arg[]) throws Exception {
+        if (arg.length != 1) {
+            System.err.println("Usage: " + LearningFiles.class.getName() + " LEARNING_FOLDER");
+            System.exit(1);
+        }
+        final File folder = new File(arg[0]);
+        final String[] files = new String[CODEBOOK_CSV_FILES.length];
+        final int[] numCentroids = new int[CODEBOOK_CSV_FILES.length];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(folder, CODEBOOK_CSV_FILES[i]).getPath();
+            numCentroids[i] = VisualIndexer.NUM_CENTROIDS;
+        }
+        final double[][][] codebooks = AbstractFeatureAggregator.readQuantizers(files, numCentroids, AbstractFeatureExtractor.SURFLength);
+        final File output = new File(folder, CODEBOOKS_FILE);
+        writeQuantizers(codebooks, output);
+        System.out.println("Wrote " + output);
+
+        final String coarse = new File(folder, COARSE_QUANTIZER_CSV_FILE).getPath();
+        writeQuantizers(AbstractFeatureAggregator.readQuantizers(new String[]{coarse}, new int[]{NUM_COARSE_CENTROIDS}, VECTOR_LENGTH), binaryFile(coarse));
+        System.out.println("Wrote " + binaryFile(coarse));
+
+        final String product = new File(folder, PRODUCT_QUANTIZER_CSV_FILE).getPath();
+        writeQuantizers(SegmentedIndex.readProductQuantizer(product, VECTOR_LENGTH, NUM_SUBVECTORS, NUM_PRODUCT_CENTROIDS), binaryFile(product));
+        System.out.println("Wrote " + binaryFile(product));
+
+        final String pca = new File(folder, PCA_TEXT_FILE).getPath();
+        convertPCA(new File(pca), binaryFile(pca), VECTOR_LENGTH, CODEBOOK_CSV_FILES.length * VisualIndexer.NUM_CENTROIDS * AbstractFeatureExtractor.SURFLength);
+        System.out.println("Wrote " + binaryFile(pca));
+    }
+}
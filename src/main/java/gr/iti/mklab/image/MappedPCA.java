@@ -0,0 +1,84 @@
+package gr.iti.mklab.image;
+
+import gr.iti.mklab.visual.dimreduction.PCA;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+
+/**
+ * A {@link PCA} projecting samples with the components of a memory-mapped binary learning file, written by
+ * {@link LearningFiles#convertPCA(File, File, int, int)}, instead of parsing the text file into matrices of its own:
+ * the components (a quarter of a gigabyte) are not copied onto the heap, and the agents of a machine share their pages
+ * through the page cache.
+ * <p/>
+ * <p>The file holds the means, the eigenvalues and the components, as rows of a single quantizer. A sample is projected
+ * as {@link PCA} does it: the means are subtracted, the result is multiplied by the components and, with whitening,
+ * each coordinate is divided by the square root of its eigenvalue and the projection is L2-normalized. The converter
+ * checks that both give the same projections before writing the file.
+ * <p/>
+ * <p>An instance is thread safe, and is shared by all vectorization threads.
+ */
+public class MappedPCA extends PCA {
+
+    private final int numComponents;
+    private final int sampleSize;
+    private final boolean whitening;
+    private final double[] means;
+    /**
+     * The factor of each coordinate of a projection: the inverse of the square root of its eigenvalue, or 1.
+     */
+    private final double[] scale;
+    /**
+     * The components, one after the other.
+     */
+    private final DoubleBuffer components;
+    /**
+     * The sample of each thread, minus the means.
+     */
+    private final ThreadLocal<double[]> centered = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[sampleSize];
+        }
+    };
+
+    public MappedPCA(File file, int numComponents, int sampleSize, boolean whitening) throws IOException {
+        super(numComponents, 1, sampleSize, whitening);
+        this.numComponents = numComponents;
+        this.sampleSize = sampleSize;
+        this.whitening = whitening;
+        final DoubleBuffer rows = LearningFiles.mapQuantizers(file, 1, numComponents + 2, sampleSize);
+        means = new double[sampleSize];
+        rows.get(means);
+        scale = new double[numComponents];
+        for (int i = 0; i < numComponents; i++) scale[i] = whitening ? 1 / Math.sqrt(rows.get(sampleSize + i)) : 1;
+        rows.position(2 * sampleSize);
+        components = rows.slice();
+    }
+
+    @Override
+    public void loadPCAFromFile(String file) {
+        throw new UnsupportedOperationException("A mapped PCA is loaded by its constructor");
+    }
+
+    @Override
+    public double[] sampleToEigenSpace(double[] sample) {
+        if (sample.length != sampleSize) throw new IllegalArgumentException("Unexpected vector length!");
+        final double[] x = centered.get();
+        for (int j = 0; j < sampleSize; j++) x[j] = sample[j] - means[j];
+        final double[] projection = new double[numComponents];
+        double norm = 0;
+        for (int i = 0, offset = 0; i < numComponents; i++, offset += sampleSize) {
+            double dot = 0;
+            for (int j = 0; j < sampleSize; j++) dot += components.get(offset + j) * x[j];
+            projection[i] = dot * scale[i];
+            norm += projection[i] * projection[i];
+        }
+        if (whitening && norm > 0) {
+            norm = Math.sqrt(norm);
+            for (int i = 0; i < numComponents; i++) projection[i] /= norm;
+        }
+        return projection;
+    }
+}
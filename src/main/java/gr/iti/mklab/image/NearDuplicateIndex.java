@@ -0,0 +1,131 @@
+package gr.iti.mklab.image;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-memory index of perceptual hashes answering Hamming-distance queries by multi-index hashing.
+ * <p/>
+ * <p>Each 64-bit hash is split into <var>d</var>+1 chunks, where <var>d</var> is the maximum distance;
+ * if two hashes differ in at most <var>d</var> bits, by the pigeonhole principle they agree exactly on at
+ * least one chunk. Every chunk has its own table, mapping a chunk value to a chain of entries, so a query
+ * only compares the hashes sharing a chunk with it.
+ * <p/>
+ * <p>The index holds at most a fixed number of hashes; further hashes are looked up but not added.
+ */
+public class NearDuplicateIndex {
+
+    private final int maxDistance;
+    private final int capacity;
+    private final int chunks;
+    private final int chunkBits;
+
+    /**
+     * The hashes, in order of insertion.
+     */
+    private final LongArrayList hashes = new LongArrayList();
+    /**
+     * The identifiers of the objects the hashes belong to.
+     */
+    private final List<ObjectId> ids = new ArrayList<ObjectId>();
+    /**
+     * For each chunk, the last entry added with each chunk value, plus one (zero is the empty chain).
+     */
+    private final Long2IntOpenHashMap[] heads;
+    /**
+     * For each chunk, the next entry in the chain of each entry, plus one.
+     */
+    private final IntArrayList[] next;
+
+    /**
+     * @param maxDistance the maximum Hamming distance between near duplicates, less than 16.
+     * @param capacity    the maximum number of hashes in the index.
+     */
+    public NearDuplicateIndex(int maxDistance, int capacity) {
+        if (maxDistance < 0 || maxDistance >= 16) throw new IllegalArgumentException("Unsupported maximum distance " + maxDistance);
+        this.maxDistance = maxDistance;
+        this.capacity = capacity;
+        this.chunks = maxDistance + 1;
+        this.chunkBits = (64 + chunks - 1) / chunks;
+        heads = new Long2IntOpenHashMap[chunks];
+        next = new IntArrayList[chunks];
+        for (int i = 0; i < chunks; i++) {
+            heads[i] = new Long2IntOpenHashMap();
+            next[i] = new IntArrayList();
+        }
+    }
+
+    private long chunk(long hash, int i) {
+        final int shift = i * chunkBits;
+        final int bits = Math.min(chunkBits, 64 - shift);
+        return bits == 64 ? hash : hash >>> shift & (1L << bits) - 1;
+    }
+
+    /**
+     * A near duplicate found by {@link #find(long)}.
+     */
+    public static final class Match {
+        /**
+         * The identifier of the image the near duplicate belongs to.
+         */
+        public final ObjectId id;
+        /**
+         * The Hamming distance from the query hash.
+         */
+        public final int distance;
+
+        private Match(ObjectId id, int distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * Looks for a near duplicate of a hash.
+     *
+     * @param hash the perceptual hash of an image.
+     * @return the closest near duplicate, or {@code null} if there is none.
+     */
+    public synchronized Match find(long hash) {
+        int best = -1, bestDistance = maxDistance + 1;
+        for (int i = 0; i < chunks && bestDistance > 0; i++) {
+            for (int e = heads[i].get(chunk(hash, i)); e != 0; e = next[i].getInt(e - 1)) {
+                final int d = PerceptualHash.distance(hash, hashes.getLong(e - 1));
+                if (d < bestDistance) {
+                    bestDistance = d;
+                    best = e - 1;
+                }
+            }
+        }
+        return best < 0 ? null : new Match(ids.get(best), bestDistance);
+    }
+
+    /**
+     * Adds a hash, unless the index is full. Only hashes of images actually stored should be added, since
+     * their near duplicates refer to them.
+     *
+     * @param hash the perceptual hash of an image.
+     * @param id   the identifier of the image.
+     */
+    public synchronized void add(long hash, ObjectId id) {
+        if (hashes.size() >= capacity) return;
+        hashes.add(hash);
+        ids.add(id);
+        final int entry = hashes.size();
+        for (int i = 0; i < chunks; i++) {
+            next[i].add(heads[i].put(chunk(hash, i), entry));
+        }
+    }
+
+    /**
+     * @return the number of hashes in the index.
+     */
+    public synchronized int size() {
+        return hashes.size();
+    }
+}
@@ -0,0 +1,81 @@
+package gr.iti.mklab.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+/**
+ * Computes the 64-bit difference hash (dHash) of an image.
+ * <p/>
+ * <p>The image is reduced to a 9&times;8 grid of average luminances, and each bit of the hash
+ * tells whether a cell is brighter than its right neighbour. Re-encoded, resized or slightly
+ * retouched copies of the same photo get hashes within a small Hamming distance.
+ * Each cell is the average of all its pixels, as an area-averaging scale would compute it: sampling a few pixels
+ * instead would let aliasing set different bits for resized copies. Images are read a row at a time, greyscale
+ * ones directly from their raster.
+ * <p/>
+ * <p>Flat or featureless images, such as blank backgrounds and plain gradients, get hashes with almost all bits equal,
+ * which are close to each other whatever the images: {@link #isDistinctive(long)} tells them apart.
+ */
+public class PerceptualHash {
+
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 8;
+    /**
+     * The minimum number of bits of a distinctive hash that must be set, and that must be clear.
+     */
+    private static final int MIN_BITS = 8;
+
+    public static long dHash(BufferedImage image) {
+        final int w = image.getWidth(), h = image.getHeight();
+        final Raster grey = image.getType() == BufferedImage.TYPE_BYTE_GRAY ? image.getRaster() : null;
+        // the columns of each cell; cells overlap only in images narrower than the grid
+        final int[] x0 = new int[WIDTH], x1 = new int[WIDTH];
+        for (int cx = 0; cx < WIDTH; cx++) {
+            x0[cx] = cx * w / WIDTH;
+            x1[cx] = Math.max(x0[cx] + 1, (cx + 1) * w / WIDTH);
+        }
+        final int[] row = new int[w];
+        final long[] sums = new long[WIDTH];
+        final int[] luma = new int[WIDTH * HEIGHT];
+        for (int cy = 0; cy < HEIGHT; cy++) {
+            final int y0 = cy * h / HEIGHT, y1 = Math.max(y0 + 1, (cy + 1) * h / HEIGHT);
+            Arrays.fill(sums, 0);
+            for (int y = y0; y < y1; y++) {
+                if (grey != null) grey.getSamples(0, y, w, 1, 0, row);
+                else {
+                    image.getRGB(0, y, w, 1, row, 0, w);
+                    for (int x = 0; x < w; x++) {
+                        final int rgb = row[x];
+                        row[x] = (299 * (rgb >> 16 & 0xFF) + 587 * (rgb >> 8 & 0xFF) + 114 * (rgb & 0xFF)) / 1000;
+                    }
+                }
+                for (int cx = 0; cx < WIDTH; cx++)
+                    for (int x = x0[cx]; x < x1[cx]; x++) sums[cx] += row[x];
+            }
+            for (int cx = 0; cx < WIDTH; cx++)
+                luma[cy * WIDTH + cx] = (int) (sums[cx] / ((long) (x1[cx] - x0[cx]) * (y1 - y0)));
+        }
+        long hash = 0;
+        for (int cy = 0; cy < HEIGHT; cy++)
+            for (int cx = 0; cx < WIDTH - 1; cx++)
+                hash = hash << 1 | (luma[cy * WIDTH + cx] > luma[cy * WIDTH + cx + 1] ? 1 : 0);
+        return hash;
+    }
+
+    /**
+     * @return false if a hash has so few bits set, or clear, that it says little about the image: near duplicates
+     * should not be looked for with it.
+     */
+    public static boolean isDistinctive(long hash) {
+        final int bits = Long.bitCount(hash);
+        return bits >= MIN_BITS && bits <= 64 - MIN_BITS;
+    }
+
+    /**
+     * @return the number of bits in which two hashes differ.
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
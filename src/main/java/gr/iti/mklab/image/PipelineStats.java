@@ -0,0 +1,304 @@
+package gr.iti.mklab.image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the stages of the image pipeline, published as an MBean
+ * in the same domain as the BUbiNG ones.
+ * <p/>
+ * <p>Each attribute is either a {@link Counter}, the statistics of a {@link Stage} (count, mean,
+ * percentiles and maximum latency in milliseconds) or a {@link Gauge} registered by a component,
+ * such as the length of a queue. Recording is lock free: a counter is an atomic increment on its own
+ * cache line, a latency a handful of atomic operations on a {@link LatencyHistogram}.
+ */
+public class PipelineStats implements DynamicMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PipelineStats.class);
+
+    /**
+     * The name of the MBean.
+     */
+    public static final String OBJECT_NAME = "it.unimi.di.law.bubing:type=PipelineStats,name=reveal";
+
+    /**
+     * The timed stages of the pipeline.
+     */
+    public enum Stage {
+        /**
+         * Connecting to an image host and receiving the headers ({@link ImageFetcher}).
+         */
+        FETCH,
+        /**
+         * Decoding the pixels of an image, after its dimensions have been checked.
+         */
+        DECODE,
+        /**
+         * Extracting the vector of an image.
+         */
+        VECTORIZE,
+        /**
+         * Adding a vector to the index.
+         */
+        INDEX,
+        /**
+         * Writing a batch of objects to the database.
+         */
+        STORE
+    }
+
+    /**
+     * The events counted along the pipeline.
+     */
+    public enum Counter {
+        /**
+         * Image URLs found in pages or crawled.
+         */
+        IMAGE_URLS,
+        /**
+         * Image URLs skipped because they were already seen.
+         */
+        URL_DUPLICATES,
+        /**
+         * Image URLs skipped because their host rarely yields acceptable images ({@link ImageYield}).
+         */
+        LOW_YIELD,
+        /**
+         * Images skipped because their content was already seen at another URL.
+         */
+        CONTENT_DUPLICATES,
+        /**
+         * Images rejected because of their content length or type.
+         */
+        REJECTED_HEADERS,
+        /**
+         * Images rejected because they are too small.
+         */
+        REJECTED_DIMENSIONS,
+        /**
+         * Images not fetched because all the variants offered by their page (e.g., in a <samp>srcset</samp>) are
+         * declared too small.
+         */
+        REJECTED_CANDIDATES,
+        /**
+         * Images in an unknown format or that could not be decoded.
+         */
+        UNDECODABLE,
+        /**
+         * Images that could not be downloaded.
+         */
+        FETCH_ERRORS,
+        /**
+         * Images that could not be vectorized.
+         */
+        VECTORIZATION_ERRORS,
+        /**
+         * The bytes of image content read.
+         */
+        IMAGE_BYTES
+    }
+
+    /**
+     * A value sampled when it is read.
+     */
+    public interface Gauge {
+        Number value();
+    }
+
+    private static final int[] PERCENTILES = {50, 90, 99};
+    /**
+     * Counters are spaced out so that each one has its own cache line.
+     */
+    private static final int PADDING = 16;
+
+    private static PipelineStats uniqueInstance;
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Stage.values().length];
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length * PADDING);
+    private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+
+    public static synchronized PipelineStats getInstance() {
+        if (uniqueInstance == null)
+            uniqueInstance = new PipelineStats();
+        return uniqueInstance;
+    }
+
+    private PipelineStats() {
+        for (int i = 0; i < latencies.length; i++) latencies[i] = new LatencyHistogram();
+        addGauge("UrlDuplicateRate", new Gauge() {
+            @Override
+            public Number value() {
+                final long urls = get(Counter.IMAGE_URLS);
+                return urls == 0 ? 0.0 : (double) get(Counter.URL_DUPLICATES) / urls;
+            }
+        });
+    }
+
+    /**
+     * Registers this MBean with the platform MBean server, unless it is already registered.
+     */
+    public synchronized void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) server.registerMBean(this, name);
+        } catch (JMException e) {
+            LOGGER.error("Could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Records the latency of a stage.
+     *
+     * @param stage the stage.
+     * @param start the value of {@link System#nanoTime()} when the stage started.
+     */
+    public void record(Stage stage, long start) {
+        latencies[stage.ordinal()].record(System.nanoTime() - start);
+    }
+
+    public void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal() * PADDING);
+    }
+
+    public void add(Counter counter, long delta) {
+        counters.addAndGet(counter.ordinal() * PADDING, delta);
+    }
+
+    public long get(Counter counter) {
+        return counters.get(counter.ordinal() * PADDING);
+    }
+
+    /**
+     * @return the latencies of a stage.
+     */
+    public LatencyHistogram latency(Stage stage) {
+        return latencies[stage.ordinal()];
+    }
+
+    /**
+     * Publishes a value as an attribute.
+     *
+     * @param name  the name of the attribute, in upper camel case.
+     * @param gauge the gauge providing the value.
+     */
+    public synchronized void addGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    private static String camelCase(String name) {
+        final StringBuilder s = new StringBuilder();
+        for (String word : name.split("_"))
+            s.append(word.charAt(0)).append(word.substring(1).toLowerCase());
+        return s.toString();
+    }
+
+    /**
+     * @return all attributes, by name.
+     */
+    private synchronized Map<String, Gauge> attributes() {
+        final Map<String, Gauge> attributes = new LinkedHashMap<String, Gauge>();
+        for (final Counter counter : Counter.values()) {
+            attributes.put(camelCase(counter.name()), new Gauge() {
+                @Override
+                public Number value() {
+                    return get(counter);
+                }
+            });
+        }
+        for (Stage stage : Stage.values()) {
+            final LatencyHistogram latency = latency(stage);
+            final String prefix = camelCase(stage.name());
+            attributes.put(prefix + "Count", new Gauge() {
+                @Override
+                public Number value() {
+                    return latency.count();
+                }
+            });
+            attributes.put(prefix + "MeanMillis", new Gauge() {
+                @Override
+                public Number value() {
+                    return latency.mean();
+                }
+            });
+            for (final int p : PERCENTILES) {
+                attributes.put(prefix + "P" + p + "Millis", new Gauge() {
+                    @Override
+                    public Number value() {
+                        return latency.percentile(p);
+                    }
+                });
+            }
+            attributes.put(prefix + "MaxMillis", new Gauge() {
+                @Override
+                public Number value() {
+                    return latency.max();
+                }
+            });
+        }
+        attributes.putAll(gauges);
+        return attributes;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        final Gauge gauge = attributes().get(attribute);
+        if (gauge == null) throw new AttributeNotFoundException(attribute);
+        return gauge.value();
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        final Map<String, Gauge> attributes = attributes();
+        final AttributeList list = new AttributeList();
+        for (String name : names) {
+            final Gauge gauge = attributes.get(name);
+            if (gauge != null) list.add(new Attribute(name, gauge.value()));
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "No operation " + actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final Map<String, Gauge> attributes = attributes();
+        final MBeanAttributeInfo[] info = new MBeanAttributeInfo[attributes.size()];
+        int i = 0;
+        for (Map.Entry<String, Gauge> e : attributes.entrySet())
+            info[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().value().getClass().getName(), e.getKey(), true, false, false);
+        return new MBeanInfo(getClass().getName(), "Statistics of the image pipeline", info,
+                new MBeanConstructorInfo[0], new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+    }
+}
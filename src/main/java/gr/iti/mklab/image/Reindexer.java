@@ -0,0 +1,300 @@
+package gr.iti.mklab.image;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.martiansoftware.jsap.FlaggedOption;
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPResult;
+import com.martiansoftware.jsap.Parameter;
+import com.martiansoftware.jsap.SimpleJSAP;
+import com.martiansoftware.jsap.UnflaggedOption;
+import gr.iti.mklab.bubing.parser.ImageParser;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds an index again from the images of an {@link ImageArchive}, without network access, e.g. after changing
+ * the learning files or the length of the vectors.
+ * <p/>
+ * <p>The archive is read sequentially by the main thread, and each image goes through {@link ImageParser} on a pool
+ * of decoding threads (bypassing the filters of already seen URLs and contents of the crawler, which the archived images
+ * have all passed) and then through {@link VisualIndexer}, whose vectorization queue runs images on the decoding
+ * threads when it is full: threads are never idle while there is decoding or vectorization to do. The index folder and the
+ * database are given on the command line; the folder of the index should be a new one. The page and
+ * alternative text of images fetched from pages are restored from their {@linkplain ImageArchive#PAGE_URL_HEADER archived headers}.
+ * <p/>
+ * <p>Each image keeps the {@linkplain ImageArchive#imageId(String, Header) id} it was archived with, so indexing an
+ * archive again into the same database, or into the crawl database, does not duplicate its documents.
+ * <p/>
+ * <p>Every <samp>--interval</samp> seconds the progress is logged and a checkpoint is saved in the index folder, recording
+ * the position in the archive up to which all images have been indexed and stored; when run again on the same index folder, the
+ * reindexer resumes from there.
+ */
+public class Reindexer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Reindexer.class);
+
+    /**
+     * The name of the checkpoint file, in the index folder.
+     */
+    public static final String CHECKPOINT_FILE = "reindex.checkpoint";
+
+    /**
+     * A block of the archive, with the number of its images still being parsed.
+     */
+    private static final class Block {
+        final int segment;
+        final long block;
+        /**
+         * The images of the block still being parsed, plus one until the reader has moved past the block.
+         */
+        final AtomicInteger pending = new AtomicInteger(1);
+
+        Block(int segment, long block) {
+            this.segment = segment;
+            this.block = block;
+        }
+    }
+
+    private final ImageArchive.Reader reader;
+    private final File checkpoint;
+    private final ThreadPoolExecutor executor;
+    private final ThreadLocal<ImageParser<Void>> parsers = new ThreadLocal<ImageParser<Void>>() {
+        @Override
+        protected ImageParser<Void> initialValue() {
+            try {
+                return new ImageParser<Void>("MD5", false);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+    /**
+     * The blocks handed over to the parsing threads, in archive order.
+     */
+    private final Queue<Block> inFlight = new ConcurrentLinkedQueue<Block>();
+
+    private final AtomicLong images = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private long startTime, lastTime, lastVectorized;
+
+    public Reindexer(File archive, File checkpoint, int threads) {
+        this.reader = new ImageArchive.Reader(archive);
+        this.checkpoint = checkpoint;
+        executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<Runnable>(threads * 16),
+                new ThreadFactoryBuilder().setNameFormat("Reindexer-%d").build(),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // wait for room in the queue, so that reading never runs ahead of parsing
+                        try {
+                            executor.getQueue().put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(e);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Moves the reader to the position saved in the checkpoint, if there is one.
+     */
+    private void resume() throws IOException {
+        if (!checkpoint.exists()) return;
+        final Properties properties = new Properties();
+        final InputStream in = new FileInputStream(checkpoint);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        final String segment = properties.getProperty("segment");
+        final long blocks = Long.parseLong(properties.getProperty("blocks"));
+        final File[] segments = reader.getSegments();
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].getName().equals(segment)) {
+                reader.seek(i, blocks);
+                images.set(Long.parseLong(properties.getProperty("images", "0")));
+                LOGGER.info("Resuming from block {} of {}, after {} images", blocks, segment, images.get());
+                return;
+            }
+        }
+        throw new IOException("Segment " + segment + " of " + checkpoint + " is not in the archive");
+    }
+
+    public void run() throws Exception {
+        resume();
+        final VisualIndexer indexer = VisualIndexer.getInstance();
+        startTime = lastTime = System.currentTimeMillis();
+        lastVectorized = indexer.getVectorizedCount();
+
+        Block current = null;
+        for (ImageArchive.Record record; (record = reader.next()) != null; ) {
+            if (current == null || current.segment != reader.getSegment() || current.block != reader.getBlock()) {
+                if (current != null) current.pending.decrementAndGet();
+                current = new Block(reader.getSegment(), reader.getBlock());
+                inFlight.add(current);
+            }
+            current.pending.incrementAndGet();
+            final ImageArchive.Record image = record;
+            final Block block = current;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        parse(image);
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                        if (LOGGER.isDebugEnabled()) LOGGER.debug("Could not index " + image.getUrl(), e);
+                    } finally {
+                        block.pending.decrementAndGet();
+                    }
+                }
+            });
+        }
+        if (current != null) current.pending.decrementAndGet();
+        reader.close();
+
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.SECONDS)) ;
+        checkpoint();
+        logProgress();
+        LOGGER.info("Reindexing completed: {} images, {} errors", images.get(), errors.get());
+    }
+
+    /**
+     * @return the response archived in a record, with its archived headers, or {@code null} if it has no content type.
+     */
+    static HttpResponse response(ImageArchive.Record record) {
+        final Header contentType = record.getFirstHeader("Content-Type");
+        if (contentType == null) return null;
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, record.getStatus(), null);
+        response.setHeaders(record.getHeaders());
+        final ByteArrayEntity entity = new ByteArrayEntity(record.getContent());
+        entity.setContentType(contentType);
+        response.setEntity(entity);
+        return response;
+    }
+
+    private void parse(ImageArchive.Record record) throws IOException {
+        final HttpResponse response = response(record);
+        if (response == null) return;
+        parsers.get().parse(URI.create(record.getUrl()), response, null);
+        images.incrementAndGet();
+        bytes.addAndGet(record.getContent().length);
+    }
+
+    /**
+     * Saves the position after the last block whose images have all been indexed.
+     */
+    synchronized void checkpoint() throws IOException, InterruptedException {
+        Block done = null;
+        for (Block b; (b = inFlight.peek()) != null && b.pending.get() == 0; ) done = inFlight.poll();
+        if (done == null) return;
+        // the images of the block may still be waiting for vectorization, and their objects for the database
+        VisualIndexer.getInstance().awaitQueued();
+        final BulkWriter writer = VisualIndexer.getInstance().getWriter();
+        if (writer != null) writer.flush();
+
+        final Properties properties = new Properties();
+        properties.setProperty("segment", reader.getSegments()[done.segment].getName());
+        properties.setProperty("blocks", Long.toString(done.block + 1));
+        properties.setProperty("images", Long.toString(images.get()));
+        final File tmp = new File(checkpoint.getPath() + ".tmp");
+        final OutputStream out = new FileOutputStream(tmp);
+        try {
+            properties.store(out, "Reindexer checkpoint");
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(checkpoint)) throw new IOException("Cannot rename " + tmp + " to " + checkpoint);
+    }
+
+    synchronized void logProgress() {
+        final long now = System.currentTimeMillis();
+        final long vectorized = VisualIndexer.getInstance().getVectorizedCount();
+        final double elapsed = Math.max(1, now - startTime) / 1000.0;
+        LOGGER.info(String.format("%d images read (%.1f MiB/s), %d vectorized: %.1f images/s, %.1f images/s overall; %d errors",
+                images.get(), bytes.get() / elapsed / (1 << 20), vectorized,
+                (vectorized - lastVectorized) * 1000.0 / Math.max(1, now - lastTime), vectorized / elapsed, errors.get()));
+        lastTime = now;
+        lastVectorized = vectorized;
+    }
+
+    public static void main(String arg[]) throws Exception {
+        final SimpleJSAP jsap = new SimpleJSAP(Reindexer.class.getName(), "Indexes again the images of an image archive, resuming from the checkpoint in the index folder if there is one.",
+                new Parameter[]{
+                        new UnflaggedOption("archive", JSAP.STRING_PARSER, JSAP.REQUIRED, "The folder of the image archive."),
+                        new FlaggedOption("index", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.REQUIRED, 'i', "index", "The folder of the new index."),
+                        new FlaggedOption("database", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.REQUIRED, 'd', "database", "The database storing the indexed images."),
+                        new FlaggedOption("learning", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'l', "learning", "The folder of the learning files."),
+                        new FlaggedOption("threads", JSAP.INTEGER_PARSER, Integer.toString(Runtime.getRuntime().availableProcessors()), JSAP.NOT_REQUIRED, 't', "threads", "The number of decoding threads."),
+                        new FlaggedOption("interval", JSAP.INTEGER_PARSER, "30", JSAP.NOT_REQUIRED, 'I', "interval", "The interval in seconds between checkpoints.")
+                });
+
+        final JSAPResult jsapResult = jsap.parse(arg);
+        if (jsap.messagePrinted()) System.exit(1);
+
+        // VisualIndexer reads its configuration when it is loaded
+        final File indexFolder = new File(jsapResult.getString("index"));
+        System.setProperty("reveal.indexFolder", indexFolder.getPath());
+        System.setProperty("reveal.database", jsapResult.getString("database"));
+        if (jsapResult.userSpecified("learning"))
+            System.setProperty("reveal.learningFolder", jsapResult.getString("learning"));
+        if (System.getProperty("reveal.vectorizationRejection") == null)
+            System.setProperty("reveal.vectorizationRejection", "caller-runs");
+        if (!indexFolder.isDirectory() && !indexFolder.mkdirs()) throw new IOException("Cannot create " + indexFolder);
+
+        PipelineStats.getInstance().register();
+        final Reindexer reindexer = new Reindexer(new File(jsapResult.getString("archive")), new File(indexFolder, CHECKPOINT_FILE), jsapResult.getInt("threads"));
+        final long interval = jsapResult.getInt("interval") * 1000L;
+        final Thread checkpointer = new Thread("Reindexer-checkpoint") {
+            @Override
+            public void run() {
+                try {
+                    for (; ; ) {
+                        Thread.sleep(interval);
+                        reindexer.logProgress();
+                        try {
+                            reindexer.checkpoint();
+                        } catch (IOException e) {
+                            LOGGER.error("Could not save the checkpoint", e);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // reindexing is over
+                }
+            }
+        };
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+        reindexer.run();
+        checkpointer.interrupt();
+    }
+}
@@ -0,0 +1,264 @@
+package gr.iti.mklab.image;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import gr.iti.mklab.visual.utilities.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small HTTP service searching the index of {@link VisualIndexer} while the crawl goes on.
+ * <p/>
+ * <p><samp>/search</samp> takes the query in the body of a <samp>POST</samp> of at most {@link #MAX_QUERY_BYTES}
+ * bytes, either as an image, with an <samp>image/*</samp> content type, or as a vector, with any other content type
+ * (its components separated by commas or white space). Query images are decoded like the indexed ones, by
+ * {@link ImageDecoder}, and must be as large. The optional parameters <samp>k</samp> (the number of results) and
+ * <samp>w</samp> (how many lists of the inverted file are visited) are taken from the query string. The answer is a JSON object
+ * holding the results, each with its id and distance, and the time spent searching.
+ * <p/>
+ * <p><samp>/stats</samp> returns the number of queries and their latency percentiles, and the size of the index.
+ * <p/>
+ * <p>The service is started by {@link gr.iti.mklab.bubing.ItiAgent} when <samp>-Dreveal.searchPort</samp> is set.
+ * It listens on the loopback interface, unless <samp>-Dreveal.searchAddress</samp> says otherwise.
+ */
+public class SearchService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SearchService.class);
+
+    /**
+     * The port of the service (<samp>-Dreveal.searchPort</samp>); the service is not started if it is not positive.
+     */
+    public static final int PORT = Integer.getInteger("reveal.searchPort", -1);
+    /**
+     * The number of threads answering queries (<samp>-Dreveal.searchThreads</samp>).
+     */
+    public static final int THREADS = Integer.getInteger("reveal.searchThreads", 4);
+    /**
+     * The address the service listens on (<samp>-Dreveal.searchAddress</samp>); by default, the loopback address.
+     */
+    public static final String ADDRESS = System.getProperty("reveal.searchAddress");
+    /**
+     * The maximum length in bytes of the body of a query (<samp>-Dreveal.searchMaxBytes</samp>).
+     */
+    public static final int MAX_QUERY_BYTES = Integer.getInteger("reveal.searchMaxBytes", 8 << 20);
+
+    private static final int DEFAULT_K = 10;
+    private static final int MAX_K = 1000;
+    private static final int MAX_W = 8192;
+
+    private final VisualIndexer indexer;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final Gson gson = new Gson();
+
+    public SearchService(VisualIndexer indexer, int port) throws IOException {
+        this.indexer = indexer;
+        // a null host name is the loopback address
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(ADDRESS), port), 0);
+        executor = Executors.newFixedThreadPool(THREADS, new ThreadFactoryBuilder().setNameFormat("SearchService-%d").setDaemon(true).build());
+        server.setExecutor(executor);
+        server.createContext("/search", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                search(exchange);
+            }
+        });
+        server.createContext("/stats", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                stats(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        LOGGER.info("Search service listening on {}", server.getAddress());
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    /**
+     * @return the latencies of the queries answered so far.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        try {
+            final Map<String, String> params = parameters(exchange.getRequestURI().getRawQuery());
+            final int k = Math.min(MAX_K, parameter(params, "k", DEFAULT_K));
+            final SegmentedIndex index = indexer.getIndex();
+            if (index == null) {
+                respond(exchange, 503, error("The index is not loaded yet"));
+                return;
+            }
+            final int w = Math.min(MAX_W, parameter(params, "w", index.getW()));
+            if (k <= 0 || w <= 0) {
+                respond(exchange, 400, error("k and w must be positive"));
+                return;
+            }
+
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, error("Queries must be posted"));
+                return;
+            }
+            final byte[] body = body(exchange);
+            if (body == null) {
+                respond(exchange, 413, error("Queries must be at most " + MAX_QUERY_BYTES + " bytes long"));
+                return;
+            }
+            final double[] vector = queryVector(exchange, body);
+            if (vector == null) {
+                respond(exchange, 400, error("Could not read a query image or vector"));
+                return;
+            }
+            if (vector.length != indexer.getVectorLength()) {
+                respond(exchange, 400, error("Query vectors must have length " + indexer.getVectorLength()));
+                return;
+            }
+
+            final long start = System.nanoTime();
+            final List<Result> results = index.computeNearestNeighbors(k, vector, w);
+            final long elapsed = System.nanoTime() - start;
+            latency.record(elapsed);
+
+            final List<Map<String, Object>> answer = new ArrayList<Map<String, Object>>(results.size());
+            for (Result r : results) {
+                final Map<String, Object> result = new LinkedHashMap<String, Object>();
+                result.put("id", r.getId());
+                result.put("distance", r.getDistance());
+                answer.add(result);
+            }
+            final Map<String, Object> response = new LinkedHashMap<String, Object>();
+            response.put("results", answer);
+            response.put("w", w);
+            response.put("time", TimeUnit.NANOSECONDS.toMicros(elapsed) / 1000.0);
+            respond(exchange, 200, response);
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, error(e.toString()));
+        } catch (Exception e) {
+            LOGGER.error("Error answering " + exchange.getRequestURI(), e);
+            respond(exchange, 500, error(e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        try {
+            final Map<String, Object> response = new LinkedHashMap<String, Object>();
+            response.put("queries", latency.count());
+            response.put("mean", latency.mean());
+            response.put("p50", latency.percentile(50));
+            response.put("p90", latency.percentile(90));
+            response.put("p99", latency.percentile(99));
+            response.put("max", latency.max());
+            final SegmentedIndex index = indexer.getIndex();
+            if (index != null) {
+                response.put("vectors", index.size());
+                response.put("segments", index.getSegmentCount());
+            }
+            respond(exchange, 200, response);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads the body of a request.
+     *
+     * @return the body, or {@code null} if it is longer than {@link #MAX_QUERY_BYTES}.
+     */
+    private static byte[] body(HttpExchange exchange) throws IOException {
+        final String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null && Long.parseLong(length.trim()) > MAX_QUERY_BYTES) return null;
+        final InputStream in = exchange.getRequestBody();
+        try {
+            final byte[] body = ByteStreams.toByteArray(ByteStreams.limit(in, MAX_QUERY_BYTES + 1L));
+            return body.length > MAX_QUERY_BYTES ? null : body;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the query vector of a request, vectorizing the query image if there is one.
+     *
+     * @return the query vector, or {@code null} if there is no usable query.
+     */
+    private double[] queryVector(HttpExchange exchange, byte[] body) throws Exception {
+        final String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType == null || !contentType.startsWith("image/")) return parseVector(new String(body, "US-ASCII"));
+        final ImageDecoder.Decoded image = ImageDecoder.read(new ByteArrayInputStream(body));
+        return image == null ? null : indexer.vectorize("query", image.getImage());
+    }
+
+    private static double[] parseVector(String text) {
+        final String s = text.trim();
+        if (s.isEmpty()) return null;
+        final String[] components = s.split("[,\\s]+");
+        final double[] vector = new double[components.length];
+        for (int i = 0; i < components.length; i++) vector[i] = Double.parseDouble(components[i]);
+        return vector;
+    }
+
+    private static Map<String, String> parameters(String query) throws IOException {
+        final Map<String, String> params = new HashMap<String, String>();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            final int eq = pair.indexOf('=');
+            if (eq < 0) params.put(URLDecoder.decode(pair, "UTF-8"), "");
+            else params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    private static int parameter(Map<String, String> params, String name, int defaultValue) {
+        final String value = params.get(name);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static Map<String, Object> error(String message) {
+        final Map<String, Object> error = new HashMap<String, Object>();
+        error.put("error", message);
+        return error;
+    }
+
+    private void respond(HttpExchange exchange, int status, Object response) throws IOException {
+        final byte[] body = gson.toJson(response).getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        final OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+}
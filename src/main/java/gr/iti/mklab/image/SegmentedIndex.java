@@ -0,0 +1,413 @@
+package gr.iti.mklab.image;
+
+import gr.iti.mklab.visual.aggregation.AbstractFeatureAggregator;
+import gr.iti.mklab.visual.datastructures.IVFPQ;
+import gr.iti.mklab.visual.datastructures.PQ;
+import gr.iti.mklab.visual.utilities.Answer;
+import gr.iti.mklab.visual.utilities.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An {@link IVFPQ} index made of a sequence of segments of at most a fixed number of vectors.
+ * <p/>
+ * <p>Vectors are added to the last segment; when it is full a new one is created, so insertion
+ * never fails because the index is full. Each segment lives in its own subfolder
+ * (<samp>segment-00000</samp>, <samp>segment-00001</samp>, &hellip;) of the index folder, and the existing
+ * segments are reopened at construction time. Searches go through all segments and merge the results.
+ * An index written before segments existed, directly in the index folder, is moved into the first segment.
+ * <p/>
+ * <p>Searches run concurrently with insertions. An {@link IVFPQ} cannot be read while it is written, so each
+ * segment is guarded by a lock. When a search holds the lock of the active segment, new vectors are queued and
+ * the search applies them before releasing the lock; a search thus sees the segment as it was when the search
+ * started, and never a partially inserted vector. The inserting threads wait for their vectors to be applied,
+ * without holding up one another, so that {@link #indexVector(String, double[])} reports the actual outcome.
+ * <p/>
+ * <p>The quantizers are loaded once, from their {@link LearningFiles binary files} if present, and shared by all
+ * segments: {@link IVFPQ} can only load them from CSV files, into copies of its own, so they are set directly in its
+ * private fields, {@link #COARSE_QUANTIZER_FIELD} and {@link #PRODUCT_QUANTIZER_FIELD}. If a version of
+ * {@link IVFPQ} does not have them, an error is logged and each segment loads the CSV files, with a copy of the
+ * quantizers per segment.
+ * Sharing does not extend to searching, however: each segment assigns the query to the coarse quantizer on its own, so
+ * the cost of a search grows with the number of segments, and the segment size should be as large as the crawl allows.
+ */
+public class SegmentedIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentedIndex.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    /**
+     * The fields of {@link IVFPQ} holding the quantizers, or null if it has no such fields.
+     */
+    static final Field COARSE_QUANTIZER_FIELD = quantizerField("coarseQuantizer", double[][].class);
+    static final Field PRODUCT_QUANTIZER_FIELD = quantizerField("productQuantizer", double[][][].class);
+
+    private final String folder;
+    private final int vectorLength;
+    private final int segmentSize;
+    private final int numSubVectors;
+    private final int numProductCentroids;
+    private final int numCoarseCentroids;
+    private final String coarseQuantizerFile;
+    private final String productQuantizerFile;
+    private final double[][] coarseQuantizer;
+    private final double[][][] productQuantizer;
+    private volatile int w;
+
+    private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+    private Segment active;
+
+    /**
+     * A vector waiting for the lock of a segment, and the outcome of its insertion.
+     */
+    private static final class Pending {
+        final String id;
+        final double[] vector;
+        private boolean done;
+        private boolean indexed;
+        private Exception failure;
+
+        Pending(String id, double[] vector) {
+            this.id = id;
+            this.vector = vector;
+        }
+
+        synchronized void complete(boolean indexed, Exception failure) {
+            this.indexed = indexed;
+            this.failure = failure;
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the vector to be inserted.
+         *
+         * @return true if it was indexed.
+         * @throws Exception the exception thrown inserting it.
+         */
+        synchronized boolean await() throws Exception {
+            while (!done) wait();
+            if (failure != null) throw failure;
+            return indexed;
+        }
+    }
+
+    /**
+     * A segment, with its lock and the vectors waiting for the lock to be inserted.
+     */
+    private static final class Segment {
+        final IVFPQ ivfpq;
+        final ReentrantLock lock = new ReentrantLock();
+        final Queue<Pending> pending = new ConcurrentLinkedQueue<Pending>();
+
+        Segment(IVFPQ ivfpq) {
+            this.ivfpq = ivfpq;
+        }
+
+        int size() {
+            return ivfpq.getLoadCounter() + pending.size();
+        }
+
+        /**
+         * Inserts the pending vectors; the caller must hold the lock. Failures are reported to the
+         * threads that queued the vectors.
+         */
+        void applyPending() {
+            for (Pending p; (p = pending.poll()) != null; ) {
+                try {
+                    p.complete(ivfpq.indexVector(p.id, p.vector), null);
+                } catch (Exception e) {
+                    p.complete(false, e);
+                }
+            }
+        }
+
+        /**
+         * Inserts the pending vectors unless another thread holds the lock; that thread will do it
+         * when it calls this method after releasing the lock.
+         */
+        void drain() {
+            while (!pending.isEmpty() && lock.tryLock()) {
+                try {
+                    applyPending();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the segments found in a folder, creating the first one if there are none.
+     *
+     * @param folder               the folder containing the segments.
+     * @param vectorLength         the length of the indexed vectors.
+     * @param segmentSize          the maximum number of vectors in a segment.
+     * @param numSubVectors        the number of subvectors of the product quantizer.
+     * @param numProductCentroids  the number of centroids of each subquantizer.
+     * @param numCoarseCentroids   the number of centroids of the coarse quantizer.
+     * @param coarseQuantizerFile  the file of the coarse quantizer.
+     * @param productQuantizerFile the file of the product quantizer.
+     * @param w                    how many lists of the inverted file are visited during search.
+     */
+    public SegmentedIndex(String folder, int vectorLength, int segmentSize, int numSubVectors, int numProductCentroids,
+                          int numCoarseCentroids, String coarseQuantizerFile, String productQuantizerFile, int w) throws Exception {
+        this.folder = folder;
+        this.vectorLength = vectorLength;
+        this.segmentSize = segmentSize;
+        this.numSubVectors = numSubVectors;
+        this.numProductCentroids = numProductCentroids;
+        this.numCoarseCentroids = numCoarseCentroids;
+        this.coarseQuantizerFile = coarseQuantizerFile;
+        this.productQuantizerFile = productQuantizerFile;
+        this.w = w;
+        final File binaryCoarseQuantizer = LearningFiles.binaryFile(coarseQuantizerFile);
+        coarseQuantizer = binaryCoarseQuantizer.exists() ? LearningFiles.readQuantizers(binaryCoarseQuantizer)[0]
+                : AbstractFeatureAggregator.readQuantizers(new String[]{coarseQuantizerFile}, new int[]{numCoarseCentroids}, vectorLength)[0];
+        final File binaryProductQuantizer = LearningFiles.binaryFile(productQuantizerFile);
+        productQuantizer = binaryProductQuantizer.exists() ? LearningFiles.readQuantizers(binaryProductQuantizer)
+                : readProductQuantizer(productQuantizerFile, vectorLength, numSubVectors, numProductCentroids);
+
+        migrateLegacyIndex(new File(folder));
+        final File[] existing = new File(folder).listFiles(SEGMENTS);
+        if (existing != null) {
+            Arrays.sort(existing);
+            for (File f : existing) segments.add(openSegment(f));
+        }
+        if (segments.isEmpty()) segments.add(openSegment(segmentFolder(0)));
+        active = segments.get(segments.size() - 1);
+        LOGGER.info("Opened {} index segments in {}", segments.size(), folder);
+    }
+
+    private static final FileFilter SEGMENTS = new FileFilter() {
+        @Override
+        public boolean accept(File f) {
+            return f.isDirectory() && f.getName().startsWith(SEGMENT_PREFIX);
+        }
+    };
+
+    private static File segmentFolder(File folder, int n) {
+        return new File(folder, String.format("%s%05d", SEGMENT_PREFIX, n));
+    }
+
+    private File segmentFolder(int n) {
+        return segmentFolder(new File(folder), n);
+    }
+
+    /**
+     * Moves an index written before segments existed, directly in a folder, into the first segment of the folder.
+     * Nothing is moved if the folder already has segments: any other file is then left alone.
+     *
+     * @return true if an index was moved.
+     * @throws IllegalStateException if a file cannot be moved.
+     */
+    static boolean migrateLegacyIndex(File folder) {
+        final File[] files = folder.listFiles();
+        if (files == null || files.length == 0 || folder.listFiles(SEGMENTS).length > 0) return false;
+        final File first = segmentFolder(folder, 0);
+        LOGGER.warn("Moving the index in {} into {}; it must hold at most as many vectors as a segment", folder, first);
+        if (!first.mkdirs()) throw new IllegalStateException("Cannot create " + first);
+        for (File f : files) {
+            if (!f.renameTo(new File(first, f.getName())))
+                throw new IllegalStateException("Cannot move " + f + " into " + first + ": move the index there by hand");
+        }
+        return true;
+    }
+
+    private Segment openSegment(File dir) throws Exception {
+        dir.mkdirs();
+        final IVFPQ segment = new IVFPQ(vectorLength, segmentSize, false, dir.getPath() + File.separator, numSubVectors, numProductCentroids,
+                PQ.TransformationType.RandomPermutation, numCoarseCentroids, true, 0);
+        if (COARSE_QUANTIZER_FIELD != null && PRODUCT_QUANTIZER_FIELD != null) {
+            COARSE_QUANTIZER_FIELD.set(segment, coarseQuantizer);
+            PRODUCT_QUANTIZER_FIELD.set(segment, productQuantizer);
+        } else {
+            segment.loadCoarseQuantizer(coarseQuantizerFile);
+            segment.loadProductQuantizer(productQuantizerFile);
+        }
+        segment.setW(w);
+        return new Segment(segment);
+    }
+
+    /**
+     * Reads the CSV file of a product quantizer: one centroid per line, the centroids of each subquantizer
+     * after those of the previous one.
+     */
+    static double[][][] readProductQuantizer(String file, int vectorLength, int numSubVectors, int numProductCentroids) throws Exception {
+        final double[][] centroids = AbstractFeatureAggregator.readQuantizers(new String[]{file}, new int[]{numSubVectors * numProductCentroids}, vectorLength / numSubVectors)[0];
+        final double[][][] productQuantizer = new double[numSubVectors][][];
+        for (int i = 0; i < numSubVectors; i++)
+            productQuantizer[i] = Arrays.copyOfRange(centroids, i * numProductCentroids, (i + 1) * numProductCentroids);
+        return productQuantizer;
+    }
+
+    /**
+     * Finds a field of {@link IVFPQ}, declared by it or by a superclass, and makes it accessible.
+     *
+     * @return the field, or null (after logging an error) if there is no such field of the given type.
+     */
+    static Field quantizerField(String name, Class<?> type) {
+        for (Class<?> c = IVFPQ.class; c != null; c = c.getSuperclass()) {
+            try {
+                final Field field = c.getDeclaredField(name);
+                if (field.getType() != type) break;
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // look in the superclass
+            } catch (SecurityException e) {
+                break;
+            }
+        }
+        LOGGER.error("IVFPQ has no {} field of type {}: the quantizers cannot be shared, each index segment loads a copy of its own",
+                name, type.getSimpleName());
+        return null;
+    }
+
+    /**
+     * Adds a vector to the last segment, creating a new segment first if the last one is full.
+     * If a search is reading the last segment, the vector is queued and this method waits for the search
+     * to insert it.
+     *
+     * @return true if the vector was indexed.
+     * @throws Exception if the vector could not be inserted.
+     */
+    public boolean indexVector(String id, double[] vector) throws Exception {
+        final Segment segment;
+        final Pending pending;
+        synchronized (this) {
+            if (active.size() >= segmentSize) {
+                final File dir = segmentFolder(segments.size());
+                LOGGER.info("Index segment full, rolling over to {}", dir);
+                segments.add(active = openSegment(dir));
+            }
+            segment = active;
+            if (segment.lock.tryLock()) {
+                try {
+                    segment.applyPending();
+                    return segment.ivfpq.indexVector(id, vector);
+                } finally {
+                    segment.lock.unlock();
+                }
+            }
+            segment.pending.add(pending = new Pending(id, vector));
+        }
+        segment.drain();
+        return pending.await();
+    }
+
+    /**
+     * Searches all segments.
+     *
+     * @param k      the number of nearest neighbours.
+     * @param vector the query vector.
+     * @return the (at most) {@code k} nearest neighbours over all segments, by increasing distance.
+     */
+    public List<Result> computeNearestNeighbors(int k, double[] vector) throws Exception {
+        return computeNearestNeighbors(k, vector, w);
+    }
+
+    /**
+     * Searches all segments visiting a given number of lists of the inverted file, without changing
+     * the default set by {@link #setW(int)}.
+     *
+     * @param k      the number of nearest neighbours.
+     * @param vector the query vector.
+     * @param w      how many lists of the inverted file are visited in each segment.
+     * @return the (at most) {@code k} nearest neighbours over all segments, by increasing distance.
+     */
+    public List<Result> computeNearestNeighbors(int k, double[] vector, int w) throws Exception {
+        final List<Result> results = new ArrayList<Result>();
+        for (Segment segment : segments) {
+            final Answer answer;
+            segment.lock.lock();
+            try {
+                final int defaultW = this.w;
+                if (w != defaultW) segment.ivfpq.setW(w);
+                try {
+                    answer = segment.ivfpq.computeNearestNeighbors(k, vector);
+                } finally {
+                    if (w != defaultW) segment.ivfpq.setW(defaultW);
+                    segment.applyPending();
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+            segment.drain();
+            results.addAll(Arrays.asList(answer.getResults()));
+        }
+        Collections.sort(results, new Comparator<Result>() {
+            @Override
+            public int compare(Result a, Result b) {
+                return Double.compare(a.getDistance(), b.getDistance());
+            }
+        });
+        return results.size() > k ? new ArrayList<Result>(results.subList(0, k)) : results;
+    }
+
+    /**
+     * Sets how many lists of the inverted file are visited in each segment during search.
+     */
+    public void setW(int w) {
+        this.w = w;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.ivfpq.setW(w);
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the default number of lists of the inverted file visited in each segment during search.
+     */
+    public int getW() {
+        return w;
+    }
+
+    /**
+     * @return the number of segments.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the number of vectors in all segments.
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) size += segment.size();
+        return size;
+    }
+
+    /**
+     * Closes all segments.
+     */
+    public void close() throws Exception {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.applyPending();
+                segment.ivfpq.close();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+}
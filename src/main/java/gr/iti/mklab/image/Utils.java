@@ -2,7 +2,6 @@ package gr.iti.mklab.image;
 
 import java.awt.image.BufferedImage;
 import java.net.URI;
-import java.util.regex.Pattern;
 
 /**
  * Created by kandreadou on 12/1/14.
@@ -12,20 +11,71 @@ public class Utils {
     private final static int MIN_CONTENT_LENGTH = 20000;
     private final static int MIN_WIDTH = 400;
     private final static int MIN_HEIGHT = 400;
+    /**
+     * The maximum number of bytes of an image (<samp>-Dreveal.maxImageBytes</samp>).
+     */
+    public final static long MAX_CONTENT_LENGTH = Long.getLong("reveal.maxImageBytes", 16 << 20);
 
-    private final static Pattern imagePattern = Pattern.compile("([^\\s]+(\\.(?i)(jpg|png|gif|bmp|jpeg|tiff))$)");
+    /**
+     * The extensions of image URLs, in lower case.
+     */
+    private final static String[] IMAGE_EXTENSIONS = {"jpg", "jpeg", "png", "gif", "bmp", "tiff"};
 
 
-    public static boolean checkContentHeaders(int contentLength, String contentType) {
-        return contentLength > MIN_CONTENT_LENGTH && contentType.startsWith("image");
+    /**
+     * @param contentLength the length of the content, or -1 if unknown (e.g., a chunked response); images of unknown
+     *                      length are accepted, and must be limited to {@link #MAX_CONTENT_LENGTH} bytes while reading them.
+     */
+    public static boolean checkContentHeaders(long contentLength, String contentType) {
+        return (contentLength < 0 || contentLength > MIN_CONTENT_LENGTH && contentLength <= MAX_CONTENT_LENGTH)
+                && contentType != null && contentType.startsWith("image");
     }
 
     public static boolean checkImage(BufferedImage img) {
-        return img != null && img.getWidth() >= MIN_WIDTH && img.getHeight() >= MIN_HEIGHT;
+        return img != null && checkDimensions(img.getWidth(), img.getHeight());
     }
 
-    public static boolean isImageUrl(String uri){
-        return imagePattern.matcher(uri).matches();
+    public static boolean checkImage(ImageDecoder.Decoded img) {
+        return img != null && checkDimensions(img.getWidth(), img.getHeight());
+    }
+
+    public static boolean checkWidth(int width) {
+        return width >= MIN_WIDTH;
+    }
+
+    public static boolean checkDimensions(int width, int height) {
+        return width >= MIN_WIDTH && height >= MIN_HEIGHT;
+    }
+
+    /**
+     * Tells whether a URL points to an image, judging from the extension at the end of its path;
+     * the query and the fragment, as well as trailing whitespace, are ignored.
+     * <p/>
+     * <p>Only the last segment of the URL, after its last slash, is looked at, from the end, and nothing
+     * is allocated: the path ends at the first <samp>?</samp> or <samp>#</samp> of the segment, so the extension
+     * of a URL whose query contains a slash is not seen. A segment containing whitespace is not an image URL.
+     */
+    public static boolean isImageUrl(CharSequence uri) {
+        int end = uri.length();
+        while (end > 0 && uri.charAt(end - 1) <= ' ') end--;
+        int pathEnd = end;
+        for (int i = end - 1; i >= 0; i--) {
+            final char c = uri.charAt(i);
+            if (c == '/') break;
+            if (c == '?' || c == '#') pathEnd = i;
+            else if (c <= ' ') return false;
+        }
+        for (String extension : IMAGE_EXTENSIONS)
+            if (endsWithExtension(uri, pathEnd, extension)) return true;
+        return false;
+    }
+
+    private static boolean endsWithExtension(CharSequence uri, int end, String extension) {
+        final int dot = end - extension.length() - 1;
+        if (dot < 1 || uri.charAt(dot) != '.') return false;
+        for (int i = 0; i < extension.length(); i++)
+            if ((uri.charAt(dot + 1 + i) | 0x20) != extension.charAt(i)) return false;
+        return true;
     }
 
 }
@@ -1,13 +1,12 @@
 package gr.iti.mklab.image;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import gr.iti.mklab.simmo.associations.Similarity;
 import gr.iti.mklab.simmo.items.Image;
 import gr.iti.mklab.simmo.morphia.MediaDAO;
 import gr.iti.mklab.simmo.morphia.MorphiaManager;
 import gr.iti.mklab.visual.aggregation.AbstractFeatureAggregator;
 import gr.iti.mklab.visual.aggregation.VladAggregatorMultipleVocabularies;
-import gr.iti.mklab.visual.datastructures.AbstractSearchStructure;
-import gr.iti.mklab.visual.datastructures.IVFPQ;
-import gr.iti.mklab.visual.datastructures.PQ;
 import gr.iti.mklab.visual.dimreduction.PCA;
 import gr.iti.mklab.visual.extraction.AbstractFeatureExtractor;
 import gr.iti.mklab.visual.extraction.SURFExtractor;
@@ -15,15 +14,39 @@ import gr.iti.mklab.visual.utilities.ImageIOGreyScale;
 import gr.iti.mklab.visual.vectorization.ImageVectorization;
 import gr.iti.mklab.visual.vectorization.ImageVectorizationResult;
 import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by kandreadou on 12/1/14.
@@ -31,25 +54,168 @@ import java.net.URL;
 public class VisualIndexer {
 
     private MediaDAO<Image> imageDAO;
+    private BulkWriter writer;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(VisualIndexer.class);
-    private final static String LEARNING_FOLDER = "/home/kandreadou/webservice/learning_files/";
-    private final static String INDEX_FOLDER = "/home/kandreadou/webservice/reveal_indices/bubing/";
+    /**
+     * The folder of the codebooks, PCA and quantizer files (<samp>-Dreveal.learningFolder</samp>).
+     */
+    private final static String LEARNING_FOLDER = folder(System.getProperty("reveal.learningFolder", "/home/kandreadou/webservice/learning_files/"));
+    /**
+     * The folder of the index segments (<samp>-Dreveal.indexFolder</samp>).
+     */
+    private final static String INDEX_FOLDER = folder(System.getProperty("reveal.indexFolder", "/home/kandreadou/webservice/reveal_indices/bubing/"));
+    /**
+     * The database storing the indexed images and their similarities (<samp>-Dreveal.database</samp>).
+     */
+    public static final String DATABASE = System.getProperty("reveal.database", "test");
 
     /**
-     * The value to use in HttpURLConnection.setConnectTimeout()
+     * The connection timeout of image downloads in milliseconds, until the crawl configuration is known.
      */
     public static final int connectionTimeout = 3000;
     /**
-     * The value to use in HttpURLConnection.setReadTimeout()
+     * The socket timeout of image downloads in milliseconds, until the crawl configuration is known.
      */
     public static final int readTimeout = 2000;
 
+    /**
+     * The number of threads vectorizing images (<samp>-Dreveal.vectorizationThreads</samp>), by default the number of cores.
+     */
+    public static final int VECTORIZATION_THREADS = Integer.getInteger("reveal.vectorizationThreads", Runtime.getRuntime().availableProcessors());
+    /**
+     * The maximum number of images waiting to be vectorized (<samp>-Dreveal.vectorizationQueueSize</samp>).
+     */
+    public static final int VECTORIZATION_QUEUE_SIZE = Integer.getInteger("reveal.vectorizationQueueSize", 256);
+    /**
+     * What to do with an image when the vectorization queue is full (<samp>-Dreveal.vectorizationRejection</samp>):
+     * <samp>drop</samp> discards it, <samp>drop-oldest</samp> discards the oldest queued image instead,
+     * <samp>caller-runs</samp> vectorizes it on the submitting thread.
+     */
+    public static final String VECTORIZATION_REJECTION = System.getProperty("reveal.vectorizationRejection", "drop");
+    /**
+     * The maximum number of vectors in each segment of the index (<samp>-Dreveal.segmentSize</samp>). A search visits
+     * every segment, so its cost grows with the number of segments.
+     */
+    public static final int SEGMENT_SIZE = Integer.getInteger("reveal.segmentSize", 1000000);
+    /**
+     * The maximum Hamming distance between the perceptual hashes of near-duplicate images
+     * (<samp>-Dreveal.nearDuplicateDistance</samp>); a negative value disables near-duplicate detection.
+     */
+    public static final int NEAR_DUPLICATE_DISTANCE = Integer.getInteger("reveal.nearDuplicateDistance", 4);
+    /**
+     * The maximum number of perceptual hashes kept in memory (<samp>-Dreveal.nearDuplicateCapacity</samp>).
+     */
+    public static final int NEAR_DUPLICATE_CAPACITY = Integer.getInteger("reveal.nearDuplicateCapacity", 1000000);
+
     private static VisualIndexer uniqueInstance;
-    private static IVFPQ index;
+    private static SegmentedIndex index;
+
+    /**
+     * The number of centroids of each SURF codebook.
+     */
+    static final int NUM_CENTROIDS = 128;
 
     private static int targetLengthMax = 1024;
-    private static int maxNumPixels = 768 * 512;
+    /**
+     * The number of pixels images are scaled to before vectorization.
+     */
+    public static final int MAX_NUM_PIXELS = 768 * 512;
+
+    private static final ColorModel GREY_MODEL = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false,
+            Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+    /**
+     * The pixels of the greyscale images each thread scales to {@link #MAX_NUM_PIXELS}, reused from image to image.
+     */
+    private static final ThreadLocal<byte[]> SCALED_PIXELS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MAX_NUM_PIXELS];
+        }
+    };
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private final ThreadPoolExecutor vectorizationExecutor;
+    /**
+     * Released when the learning files and the index have been loaded.
+     */
+    private final CountDownLatch initialized = new CountDownLatch(1);
+    private final NearDuplicateIndex nearDuplicates = NEAR_DUPLICATE_DISTANCE < 0 ? null : new NearDuplicateIndex(NEAR_DUPLICATE_DISTANCE, NEAR_DUPLICATE_CAPACITY);
+    /**
+     * The number of images recorded as near duplicates of an image already indexed.
+     */
+    private final AtomicLong nearDuplicateCount = new AtomicLong();
+    /**
+     * The number of images handled by the rejection policy because the vectorization queue was full.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+    /**
+     * The number of images vectorized and indexed by the vectorization threads.
+     */
+    private final AtomicLong vectorized = new AtomicLong();
+    /**
+     * The bytes allocated by the vectorization threads while vectorizing and indexing, if the JVM measures them.
+     */
+    private final AtomicLong vectorizationAllocatedBytes = new AtomicLong();
+    /**
+     * The images handed over to the vectorization threads since the last call to {@link #awaitQueued()}.
+     */
+    private Generation generation = new Generation();
+    private final Object generationLock = new Object();
+    private final Object awaitLock = new Object();
+
+    /**
+     * The number of images of a generation still waiting for vectorization or being vectorized.
+     */
+    private static final class Generation {
+        private int pending;
+
+        synchronized void enter() {
+            pending++;
+        }
+
+        synchronized void exit() {
+            if (--pending == 0) notifyAll();
+        }
+
+        synchronized void await() throws InterruptedException {
+            while (pending != 0) wait();
+        }
+    }
+
+    /**
+     * The vectorization of an image, which leaves its generation once run or discarded.
+     */
+    private final class VectorizationTask implements Runnable {
+        private final BufferedImage im;
+        private final Image obj;
+        /**
+         * The perceptual hash of the image, if it is to be added to the near-duplicate index.
+         */
+        private final long hash;
+        private final boolean distinctive;
+        private final Generation generation;
+
+        VectorizationTask(BufferedImage im, Image obj, long hash, boolean distinctive, Generation generation) {
+            this.im = im;
+            this.obj = obj;
+            this.hash = hash;
+            this.distinctive = distinctive;
+            this.generation = generation;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (vectorizeAndStore(im, obj) && distinctive) nearDuplicates.add(hash, obj.getObjectId());
+            } catch (Exception e) {
+                PipelineStats.getInstance().increment(PipelineStats.Counter.VECTORIZATION_ERRORS);
+                LOGGER.warn("Could not vectorize " + obj.getUrl(), e);
+            } finally {
+                generation.exit();
+            }
+        }
+    }
 
     public static synchronized VisualIndexer getInstance() {
         if (uniqueInstance == null)
@@ -58,13 +224,129 @@ public class VisualIndexer {
     }
 
     private VisualIndexer() {
+        vectorizationExecutor = new ThreadPoolExecutor(VECTORIZATION_THREADS, VECTORIZATION_THREADS, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<Runnable>(VECTORIZATION_QUEUE_SIZE),
+                new ThreadFactoryBuilder().setNameFormat("VisualIndexer-%d").setDaemon(true).build(),
+                rejectionPolicy(VECTORIZATION_REJECTION));
         try {
-            initialize();
-            MorphiaManager.setup("test");
+            MorphiaManager.setup(DATABASE);
             imageDAO = new MediaDAO<Image>(Image.class);
+            writer = new BulkWriter(MorphiaManager.getMorphia(), imageDAO.getDatastore());
         } catch (Exception ex) {
             LOGGER.error("Error creating VisualIndexer " + ex);
         }
+        // the index must be closed even without a database
+        Runtime.getRuntime().addShutdownHook(new Thread("VisualIndexer-shutdown") {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        });
+        // Loading the learning files takes a while: images are queued meanwhile, and vectorized once it is over
+        final Thread initializer = new Thread("VisualIndexer-initializer") {
+            @Override
+            public void run() {
+                try {
+                    initialize();
+                } catch (Exception ex) {
+                    LOGGER.error("Error initializing VisualIndexer " + ex);
+                } finally {
+                    initialized.countDown();
+                }
+            }
+        };
+        initializer.setDaemon(true);
+        initializer.start();
+        registerGauges(PipelineStats.getInstance());
+    }
+
+    private void registerGauges(PipelineStats stats) {
+        stats.addGauge("VectorizationQueueSize", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return getQueueSize();
+            }
+        });
+        stats.addGauge("VectorizationRejected", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return getRejectedCount();
+            }
+        });
+        stats.addGauge("NearDuplicates", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return getNearDuplicateCount();
+            }
+        });
+        stats.addGauge("Vectorized", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return getVectorizedCount();
+            }
+        });
+        stats.addGauge("AllocatedBytesPerImage", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return getAllocatedBytesPerImage();
+            }
+        });
+        stats.addGauge("IndexedVectors", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return index == null ? 0L : index.size();
+            }
+        });
+        stats.addGauge("IndexSegments", new PipelineStats.Gauge() {
+            @Override
+            public Number value() {
+                return index == null ? 0 : index.getSegmentCount();
+            }
+        });
+        if (writer != null) {
+            stats.addGauge("WriteQueueSize", new PipelineStats.Gauge() {
+                @Override
+                public Number value() {
+                    return writer.getQueueSize();
+                }
+            });
+            stats.addGauge("Written", new PipelineStats.Gauge() {
+                @Override
+                public Number value() {
+                    return writer.getWrittenCount();
+                }
+            });
+            stats.addGauge("WriteFailed", new PipelineStats.Gauge() {
+                @Override
+                public Number value() {
+                    return writer.getFailedCount();
+                }
+            });
+            stats.addGauge("WriteDuplicates", new PipelineStats.Gauge() {
+                @Override
+                public Number value() {
+                    return writer.getDuplicateCount();
+                }
+            });
+            stats.addGauge("WriteFlushes", new PipelineStats.Gauge() {
+                @Override
+                public Number value() {
+                    return writer.getFlushCount();
+                }
+            });
+            stats.addGauge("WriteFlushMeanMillis", new PipelineStats.Gauge() {
+                @Override
+                public Number value() {
+                    return writer.getMeanFlushTime();
+                }
+            });
+            stats.addGauge("WriteFlushMaxMillis", new PipelineStats.Gauge() {
+                @Override
+                public Number value() {
+                    return writer.getMaxFlushTime();
+                }
+            });
+        }
     }
 
     public void downloadIndexAndStore(Image item) {
@@ -73,97 +355,338 @@ public class VisualIndexer {
             BufferedImage im = downloadImage(urlLine);
             indexAndStore(im, item);
         } catch (Exception ex) {
-            System.out.println("Exception on download " + ex);
+            LOGGER.warn("Could not download and index " + urlLine, ex);
         }
 
     }
 
-    public void indexAndStore(BufferedImage im, Image obj) throws Exception {
-        ImageVectorization imvec = new ImageVectorization(obj.getObjectId().toString(), im, targetLengthMax, maxNumPixels);
-        ImageVectorizationResult result = imvec.call();
-        if (StringUtils.isEmpty(result.getExceptionMessage())) {
-            String id = result.getImageName();
-            double[] vector = result.getImageVector();
-            //System.out.println("Vectorization Result: " + vector.length + " " + id);
-            if (index.indexVector(id, vector))
-                imageDAO.save(obj);
+    /**
+     * Queues an image for vectorization, indexing and storage on the vectorization threads.
+     * What happens when the queue is full depends on {@link #VECTORIZATION_REJECTION}.
+     * <p/>
+     * <p>Near duplicates of an image already indexed are not vectorized: they are stored together with
+     * a {@link Similarity} to the first occurrence. The hash of an image is added to the near-duplicate index
+     * only once the image has been indexed, so that similarities never refer to an image that was dropped.
+     * Images whose hash is not {@linkplain PerceptualHash#isDistinctive(long) distinctive}, such as flat ones,
+     * are neither looked up nor added.
+     */
+    public void indexAndStore(final BufferedImage im, final Image obj) {
+        final long hash = nearDuplicates == null ? 0 : PerceptualHash.dHash(im);
+        final boolean distinctive = nearDuplicates != null && PerceptualHash.isDistinctive(hash);
+        if (distinctive) {
+            final NearDuplicateIndex.Match match = nearDuplicates.find(hash);
+            if (match != null) {
+                nearDuplicateCount.incrementAndGet();
+                final Image original = new Image();
+                original.setObjectId(match.id);
+                if (writer != null) {
+                    try {
+                        writer.write(obj);
+                        writer.write(new Similarity(original, obj, 1 - match.distance / 64.0));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return;
+            }
+        }
+        final Generation current;
+        synchronized (generationLock) {
+            current = generation;
+            current.enter();
         }
+        vectorizationExecutor.execute(new VectorizationTask(im, obj, hash, distinctive, current));
     }
 
-    private BufferedImage downloadImage(String imageUrl) throws Exception {
-        BufferedImage image = null;
-        InputStream in = null;
-        try { // first try reading with the default class
-            URL url = new URL(imageUrl);
-            HttpURLConnection conn = null;
-            boolean success = false;
-            try {
-                conn = (HttpURLConnection) url.openConnection();
-                conn.setInstanceFollowRedirects(true);
-                conn.setConnectTimeout(connectionTimeout); // TO DO: add retries when connections times out
-                conn.setReadTimeout(readTimeout);
-                conn.connect();
-                success = true;
-            } catch (Exception e) {
-                System.out.println("Connection related exception at url: " + imageUrl);
-            } finally {
-                if (!success) {
-                    conn.disconnect();
-                }
+    /**
+     * @return the number of images waiting to be vectorized.
+     */
+    public int getQueueSize() {
+        return vectorizationExecutor.getQueue().size();
+    }
+
+    /**
+     * @return the number of images handled so far by the rejection policy because the vectorization queue was full.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of images recorded as near duplicates instead of being vectorized.
+     */
+    public long getNearDuplicateCount() {
+        return nearDuplicateCount.get();
+    }
+
+    /**
+     * @return the number of images vectorized by the vectorization threads.
+     */
+    public long getVectorizedCount() {
+        return vectorized.get();
+    }
+
+    /**
+     * @return the average number of bytes allocated to vectorize and index an image, or -1 if the JVM does not measure it.
+     */
+    public long getAllocatedBytesPerImage() {
+        final long n = vectorized.get();
+        if (allocatedBytes() < 0) return -1;
+        return n == 0 ? 0 : vectorizationAllocatedBytes.get() / n;
+    }
+
+    /**
+     * Waits until the images queued so far for vectorization have been vectorized and indexed, or discarded by the
+     * rejection policy; images queued meanwhile are not waited for.
+     */
+    public void awaitQueued() throws InterruptedException {
+        synchronized (awaitLock) {
+            final Generation queued;
+            synchronized (generationLock) {
+                queued = generation;
+                generation = new Generation();
             }
-            success = false;
+            queued.await();
+        }
+    }
+
+    /**
+     * @return the index of the image vectors.
+     */
+    public SegmentedIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the writer storing the indexed images.
+     */
+    public BulkWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Vectorizes the images already queued, then writes all pending images to the database.
+     */
+    public void shutdown() {
+        vectorizationExecutor.shutdown();
+        try {
+            if (!vectorizationExecutor.awaitTermination(1, TimeUnit.MINUTES))
+                LOGGER.warn("{} images were still waiting for vectorization at shutdown", vectorizationExecutor.getQueue().size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer != null) writer.close();
+        if (index != null) {
             try {
-                in = conn.getInputStream();
-                success = true;
+                index.close();
             } catch (Exception e) {
-                System.out.println("Exception when getting the input stream from the connection at url: "
-                        + imageUrl);
-            } finally {
-                if (!success) {
-                    in.close();
+                LOGGER.error("Error closing the index", e);
+            }
+        }
+    }
+
+    /**
+     * Builds the policy handling the images that do not fit in the vectorization queue. Discarded images leave
+     * their generation, so that {@link #awaitQueued()} does not wait for them.
+     */
+    private RejectedExecutionHandler rejectionPolicy(final String name) {
+        final boolean dropOldest = "drop-oldest".equals(name), callerRuns = "caller-runs".equals(name);
+        if (!dropOldest && !callerRuns && !"drop".equals(name))
+            throw new IllegalArgumentException("Unknown vectorization rejection policy " + name);
+        return new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    discard(r);
+                    return;
                 }
+                if (rejected.incrementAndGet() % 1000 == 1)
+                    LOGGER.warn("Vectorization queue full ({} images), {} images rejected so far", executor.getQueue().size(), rejected.get());
+                if (callerRuns) r.run();
+                else if (dropOldest) {
+                    discard(executor.getQueue().poll());
+                    executor.execute(r);
+                } else discard(r);
             }
-            image = ImageIO.read(in);
-        } catch (IllegalArgumentException e) {
-            // this exception is probably thrown because of a greyscale jpeg image
-            System.out.println("Exception: " + e.getMessage() + " | Image: " + imageUrl);
-            image = ImageIOGreyScale.read(in); // retry with the modified class
-        } catch (MalformedURLException e) {
-            System.out.println("Malformed url exception. Url: " + imageUrl);
+        };
+    }
+
+    private static void discard(Runnable r) {
+        if (r instanceof VectorizationTask) ((VectorizationTask) r).generation.exit();
+    }
+
+    /**
+     * Vectorizes an image on the calling thread, waiting for the learning files to be loaded.
+     * <p/>
+     * <p>Vectorization is not allocation free. The thread reuses its scaled pixels (see {@link #fitToPixelBudget(BufferedImage)})
+     * and, with a {@link MappedPCA}, its centered sample; but the library takes no buffers from the caller, so each
+     * image still gets a new {@link ImageVectorization}, with its own SURF descriptors and VLAD vector, and a new
+     * projected vector, which the index may keep after this method returns. {@link #getAllocatedBytesPerImage()}
+     * measures what is left.
+     *
+     * @return the vector of the image, or {@code null} if it could not be vectorized.
+     */
+    public double[] vectorize(String name, BufferedImage im) throws Exception {
+        initialized.await();
+        ImageVectorization imvec = new ImageVectorization(name, fitToPixelBudget(im), targetLengthMax, MAX_NUM_PIXELS);
+        ImageVectorizationResult result = imvec.call();
+        return StringUtils.isEmpty(result.getExceptionMessage()) ? result.getImageVector() : null;
+    }
+
+    /**
+     * @return the length of the image vectors.
+     */
+    public int getVectorLength() {
+        return targetLengthMax;
+    }
+
+    /**
+     * @return true if the image has been indexed.
+     */
+    private boolean vectorizeAndStore(BufferedImage im, Image obj) throws Exception {
+        initialized.await();
+        if (index == null) return false;
+        final PipelineStats stats = PipelineStats.getInstance();
+        final long allocated = allocatedBytes();
+        String id = obj.getObjectId().toString();
+        long start = System.nanoTime();
+        double[] vector = vectorize(id, im);
+        stats.record(PipelineStats.Stage.VECTORIZE, start);
+        //System.out.println("Vectorization Result: " + vector.length + " " + id);
+        if (vector == null) {
+            stats.increment(PipelineStats.Counter.VECTORIZATION_ERRORS);
+            return false;
+        }
+        start = System.nanoTime();
+        final boolean indexed = index.indexVector(id, vector);
+        stats.record(PipelineStats.Stage.INDEX, start);
+        if (indexed) {
+            if (allocated >= 0) vectorizationAllocatedBytes.addAndGet(allocatedBytes() - allocated);
+            vectorized.incrementAndGet();
+            if (writer != null) writer.write(obj);
+        }
+        return indexed;
+    }
+
+    private static String folder(String name) {
+        return name.endsWith(File.separator) ? name : name + File.separator;
+    }
+
+    /**
+     * Scales a greyscale image larger than {@link #MAX_NUM_PIXELS} into this thread's pixel buffer,
+     * so that {@link ImageVectorization} does not allocate a scaled copy of its own. The result is
+     * only valid until the next call on the same thread.
+     */
+    static BufferedImage fitToPixelBudget(BufferedImage im) {
+        final long pixels = (long) im.getWidth() * im.getHeight();
+        if (pixels <= MAX_NUM_PIXELS || im.getType() != BufferedImage.TYPE_BYTE_GRAY) return im;
+        final double ratio = Math.sqrt((double) MAX_NUM_PIXELS / pixels);
+        final int width = Math.max(1, (int) (im.getWidth() * ratio)), height = Math.max(1, (int) (im.getHeight() * ratio));
+        final WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(SCALED_PIXELS.get(), width * height),
+                width, height, width, 1, new int[]{0}, null);
+        final BufferedImage scaled = new BufferedImage(GREY_MODEL, raster, false, null);
+        final Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(im, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if the JVM does not measure them.
+     */
+    private static long allocatedBytes() {
+        if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled())
+                return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private BufferedImage downloadImage(String imageUrl) throws Exception {
+        final URI uri;
+        try {
+            uri = new URI(imageUrl);
+        } catch (URISyntaxException e) {
+            LOGGER.debug("Malformed image URL {}", imageUrl);
+            return null;
+        }
+        final CloseableHttpResponse response = ImageHttpClient.getInstance().get(uri);
+        try {
+            final HttpEntity entity = response.getEntity();
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+                LOGGER.debug("Could not download image {} ({})", imageUrl, response.getStatusLine());
+                return null;
+            }
+            final InputStream in = entity.getContent();
+            try { // first try reading with the default class
+                ImageDecoder.Decoded decoded = ImageDecoder.read(in);
+                return decoded == null ? null : decoded.getImage();
+            } catch (IllegalArgumentException e) {
+                // this exception is probably thrown because of a greyscale jpeg image
+                LOGGER.debug("Retrying {} as greyscale: {}", imageUrl, e.getMessage());
+                return ImageIOGreyScale.read(in); // retry with the modified class
+            }
+        } finally {
+            response.close();
         }
-        return image;
     }
 
     private void initialize() throws Exception {
-        int[] numCentroids = {128, 128, 128, 128};
-        int initialLength = numCentroids.length * numCentroids[0] * AbstractFeatureExtractor.SURFLength;
-
-        String[] codebookFiles = {
-                LEARNING_FOLDER + "surf_l2_128c_0.csv",
-                LEARNING_FOLDER + "surf_l2_128c_1.csv",
-                LEARNING_FOLDER + "surf_l2_128c_2.csv",
-                LEARNING_FOLDER + "surf_l2_128c_3.csv"
-        };
-        String pcaFile = LEARNING_FOLDER + "pca_surf_4x128_32768to1024.txt";
+        final long start = System.currentTimeMillis();
+        final int[] numCentroids = {NUM_CENTROIDS, NUM_CENTROIDS, NUM_CENTROIDS, NUM_CENTROIDS};
+        final int initialLength = numCentroids.length * numCentroids[0] * AbstractFeatureExtractor.SURFLength;
+
+        final String[] codebookFiles = new String[LearningFiles.CODEBOOK_CSV_FILES.length];
+        for (int i = 0; i < codebookFiles.length; i++) codebookFiles[i] = LEARNING_FOLDER + LearningFiles.CODEBOOK_CSV_FILES[i];
+        final File binaryCodebooks = new File(LEARNING_FOLDER, LearningFiles.CODEBOOKS_FILE);
+        final String pcaFile = LEARNING_FOLDER + LearningFiles.PCA_TEXT_FILE;
         ImageVectorization.setFeatureExtractor(new SURFExtractor());
-        double[][][] codebooks = AbstractFeatureAggregator.readQuantizers(codebookFiles, numCentroids,
-                AbstractFeatureExtractor.SURFLength);
-        ImageVectorization.setVladAggregator(new VladAggregatorMultipleVocabularies(codebooks));
-        if (targetLengthMax < initialLength) {
-            PCA pca = new PCA(targetLengthMax, 1, initialLength, true);
-            pca.loadPCAFromFile(pcaFile);
-            ImageVectorization.setPcaProjector(pca);
-        }
-        int maximumNumVectors = 10000;
-        int m2 = 64;
-        int k_c = 256;
-        int numCoarseCentroids = 8192;
-        String coarseQuantizerFile2 = LEARNING_FOLDER + "qcoarse_1024d_8192k.csv";
-        String productQuantizerFile2 = LEARNING_FOLDER + "pq_1024_64x8_rp_ivf_8192k.csv";
-        index = new IVFPQ(targetLengthMax, maximumNumVectors, false, INDEX_FOLDER, m2, k_c, PQ.TransformationType.RandomPermutation, numCoarseCentroids, true, 0);
-        index.loadCoarseQuantizer(coarseQuantizerFile2);
-        index.loadProductQuantizer(productQuantizerFile2);
-        int w = 64; // larger values will improve results/increase seach time
-        index.setW(w); // how many (out of 8192) lists should be visited during search.
+
+        // The learning files are independent: load them in parallel
+        final ExecutorService loader = Executors.newFixedThreadPool(3);
+        try {
+            final Future<double[][][]> codebooks = loader.submit(new Callable<double[][][]>() {
+                @Override
+                public double[][][] call() throws Exception {
+                    if (binaryCodebooks.exists()) return LearningFiles.readQuantizers(binaryCodebooks);
+                    return AbstractFeatureAggregator.readQuantizers(codebookFiles, numCentroids, AbstractFeatureExtractor.SURFLength);
+                }
+            });
+            final Future<PCA> pca = loader.submit(new Callable<PCA>() {
+                @Override
+                public PCA call() throws Exception {
+                    if (targetLengthMax >= initialLength) return null;
+                    final File binaryPca = LearningFiles.binaryFile(pcaFile);
+                    if (binaryPca.exists()) return new MappedPCA(binaryPca, targetLengthMax, initialLength, true);
+                    PCA pca = new PCA(targetLengthMax, 1, initialLength, true);
+                    pca.loadPCAFromFile(pcaFile);
+                    return pca;
+                }
+            });
+            final Future<SegmentedIndex> segmentedIndex = loader.submit(new Callable<SegmentedIndex>() {
+                @Override
+                public SegmentedIndex call() throws Exception {
+                    int m2 = LearningFiles.NUM_SUBVECTORS;
+                    int k_c = LearningFiles.NUM_PRODUCT_CENTROIDS;
+                    int numCoarseCentroids = LearningFiles.NUM_COARSE_CENTROIDS;
+                    String coarseQuantizerFile2 = LEARNING_FOLDER + LearningFiles.COARSE_QUANTIZER_CSV_FILE;
+                    String productQuantizerFile2 = LEARNING_FOLDER + LearningFiles.PRODUCT_QUANTIZER_CSV_FILE;
+                    int w = 64; // larger values will improve results/increase seach time
+                    // w is how many (out of 8192) lists should be visited during search.
+                    return new SegmentedIndex(INDEX_FOLDER, targetLengthMax, SEGMENT_SIZE, m2, k_c, numCoarseCentroids, coarseQuantizerFile2, productQuantizerFile2, w);
+                }
+            });
+            ImageVectorization.setVladAggregator(new VladAggregatorMultipleVocabularies(codebooks.get()));
+            if (pca.get() != null) ImageVectorization.setPcaProjector(pca.get());
+            index = segmentedIndex.get();
+        } finally {
+            loader.shutdown();
+        }
+        LOGGER.info("VisualIndexer initialized in {} ms", System.currentTimeMillis() - start);
     }
 }
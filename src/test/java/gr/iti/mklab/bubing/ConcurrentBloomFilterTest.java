@@ -0,0 +1,86 @@
+package gr.iti.mklab.bubing;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentBloomFilterTest {
+
+    private static final int KEYS = 10000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static String key(int i) {
+        return "http://www.example.com/images/" + i + ".jpg";
+    }
+
+    @Test
+    public void testClaim() {
+        final ConcurrentBloomFilter filter = new ConcurrentBloomFilter(KEYS, 1E-4);
+        int falsePositives = 0;
+        for (int i = 0; i < KEYS; i++) if (!filter.claim(key(i))) falsePositives++;
+        assertTrue(falsePositives < 10);
+        for (int i = 0; i < KEYS; i++) {
+            assertFalse(filter.claim(key(i)));
+            assertTrue(filter.mightContain(key(i)));
+        }
+    }
+
+    @Test
+    public void testClaimBytes() {
+        final ConcurrentBloomFilter filter = new ConcurrentBloomFilter(KEYS, 1E-4);
+        final byte[] digest = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+        assertTrue(filter.claim(digest));
+        assertFalse(filter.claim(digest.clone()));
+    }
+
+    @Test
+    public void testConcurrentClaimsAreExclusive() throws InterruptedException {
+        final ConcurrentBloomFilter filter = new ConcurrentBloomFilter(KEYS, 1E-4);
+        final int[] claimed = new int[4];
+        final Thread[] threads = new Thread[claimed.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < KEYS; i++) if (filter.claim(key(i))) claimed[thread]++;
+                }
+            };
+            threads[t].start();
+        }
+        int total = 0;
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            total += claimed[t];
+        }
+        // a key is claimed by exactly one thread, unless it is a false positive
+        assertTrue(total <= KEYS && total >= KEYS - 10);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        final ConcurrentBloomFilter filter = new ConcurrentBloomFilter(KEYS, 1E-4);
+        for (int i = 0; i < KEYS; i++) filter.claim(key(i));
+        final File file = new File(temporaryFolder.getRoot(), "filter");
+        filter.save(file);
+
+        final ConcurrentBloomFilter loaded = ConcurrentBloomFilter.load(file);
+        assertEquals(filter.bitSize(), loaded.bitSize());
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(loaded.mightContain(key(i)));
+            assertFalse(loaded.claim(key(i)));
+        }
+        int falsePositives = 0;
+        for (int i = KEYS; i < 2 * KEYS; i++) if (loaded.mightContain(key(i))) falsePositives++;
+        assertTrue(falsePositives < 10);
+    }
+}
@@ -0,0 +1,147 @@
+package gr.iti.mklab.bubing.parser;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import net.htmlparser.jericho.EndTag;
+import net.htmlparser.jericho.HTMLElementName;
+import net.htmlparser.jericho.Segment;
+import net.htmlparser.jericho.StartTag;
+import net.htmlparser.jericho.StreamedSource;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class DigestAppendableTest {
+
+    private static final URI PAGE = URI.create("http://www.example.com/page.html");
+    /**
+     * Characters covering ASCII and non-ASCII whitespace and digits, a surrogate pair and characters with a high byte.
+     */
+    private static final String ALPHABET = "abc XYZ\t\n\r019\u00E9\u0394\u4E2D\u2003\u00A0\u0663\uFF11\uD83D\uDE00\uFFFF\u0100";
+
+    /**
+     * The digest as computed before characters were hashed in blocks: each normalized character is put separately.
+     */
+    private static final class Reference {
+        final Hasher hasher;
+        boolean lastAppendedWasSpace;
+
+        Reference(HashFunction hashFunction, URI url) {
+            hasher = hashFunction.newHasher();
+            hasher.putUnencodedChars(url.getHost());
+            hasher.putByte((byte) 0);
+        }
+
+        void append(CharSequence s) {
+            for (int i = 0; i < s.length(); i++) append(s.charAt(i));
+        }
+
+        void append(char c) {
+            if (Character.isWhitespace(c) || Character.isDigit(c)) {
+                if (!lastAppendedWasSpace) {
+                    hasher.putChar(' ');
+                    lastAppendedWasSpace = true;
+                }
+            } else {
+                hasher.putChar(c);
+                lastAppendedWasSpace = false;
+            }
+        }
+
+        void startTag(StartTag startTag) {
+            final String name = startTag.getName();
+            hasher.putBytes(ITIHTMLParser.DigestAppendable.startTags.get(name));
+            if (name == HTMLElementName.IFRAME || name == HTMLElementName.FRAME) {
+                final String s = startTag.getAttributeValue("src");
+                if (s != null) {
+                    append('\"');
+                    append(s);
+                    append('\"');
+                }
+            }
+            lastAppendedWasSpace = false;
+        }
+
+        void endTag(EndTag endTag) {
+            hasher.putBytes(ITIHTMLParser.DigestAppendable.endTags.get(endTag.getName()));
+            lastAppendedWasSpace = false;
+        }
+    }
+
+    private static String text(Random random, int length) {
+        final StringBuilder s = new StringBuilder(length);
+        while (s.length() < length) {
+            final int i = random.nextInt(ALPHABET.length());
+            // keep surrogate pairs together
+            if (Character.isHighSurrogate(ALPHABET.charAt(i))) s.append(ALPHABET, i, i + 2);
+            else if (!Character.isLowSurrogate(ALPHABET.charAt(i))) s.append(ALPHABET.charAt(i));
+        }
+        return s.toString();
+    }
+
+    private static void assertSameDigest(HashFunction hashFunction, String text, Random random) {
+        final Reference reference = new Reference(hashFunction, PAGE);
+        reference.append(text);
+        final ITIHTMLParser.DigestAppendable digest = new ITIHTMLParser.DigestAppendable(hashFunction);
+        digest.init(PAGE);
+        // mixes whole sequences, subsequences and single characters
+        for (int start = 0; start < text.length(); ) {
+            final int end = Math.min(text.length(), start + random.nextInt(3 * 4096));
+            switch (random.nextInt(3)) {
+                case 0:
+                    digest.append(text.substring(start, end));
+                    break;
+                case 1:
+                    digest.append(text, start, end);
+                    break;
+                default:
+                    for (int i = start; i < end; i++) digest.append(text.charAt(i));
+            }
+            start = end;
+        }
+        assertArrayEquals(reference.hasher.hash().asBytes(), digest.digest());
+    }
+
+    @Test
+    public void testTextDigestIsUnchanged() {
+        final Random random = new Random(0);
+        for (HashFunction hashFunction : new HashFunction[]{Hashing.md5(), Hashing.murmur3_128()}) {
+            assertSameDigest(hashFunction, "", random);
+            assertSameDigest(hashFunction, "Hello, 2015 \uD83D\uDE00 world", random);
+            // longer than a block of 8 KiB, possibly with a surrogate pair across the boundary
+            for (int length : new int[]{4095, 4096, 4097, 20000, 100000}) assertSameDigest(hashFunction, text(random, length), random);
+        }
+    }
+
+    @Test
+    public void testPageDigestIsUnchanged() {
+        final Random random = new Random(1);
+        final StringBuilder page = new StringBuilder("<html><head><title>Digest \u00E9t\u00E9 2015</title></head><body>");
+        for (int i = 0; i < 200; i++) {
+            page.append("<p class=\"x").append(i).append("\">").append(text(random, random.nextInt(300))).append("</p>");
+            if (i % 50 == 0) page.append("<iframe src=\"http://www.example.com/frame").append(i).append(".html\"></iframe><blink>\uD83D\uDE00</blink>");
+        }
+        page.append("</body></html>");
+
+        final Reference reference = new Reference(Hashing.md5(), PAGE);
+        final ITIHTMLParser.DigestAppendable digest = new ITIHTMLParser.DigestAppendable(Hashing.md5());
+        digest.init(PAGE);
+        for (Segment segment : new StreamedSource(page)) {
+            if (segment instanceof StartTag) {
+                reference.startTag((StartTag) segment);
+                digest.startTag((StartTag) segment);
+            } else if (segment instanceof EndTag) {
+                reference.endTag((EndTag) segment);
+                digest.endTag((EndTag) segment);
+            } else {
+                reference.append(segment);
+                digest.append(segment);
+            }
+        }
+        assertArrayEquals(reference.hasher.hash().asBytes(), digest.digest());
+    }
+}
@@ -0,0 +1,92 @@
+package gr.iti.mklab.bubing.parser;
+
+import net.htmlparser.jericho.Source;
+import net.htmlparser.jericho.StartTag;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ImageCandidatesTest {
+
+    private static StartTag tag(String html) {
+        return new Source(html).getFirstStartTag();
+    }
+
+    private static String select(String img) {
+        final ImageCandidates candidates = new ImageCandidates();
+        candidates.addImage(tag(img));
+        return candidates.select();
+    }
+
+    @Test
+    public void testSrcOnly() {
+        assertEquals("http://example.com/a.jpg", select("<img src=' http://example.com/a.jpg '>"));
+        assertNull(select("<img alt='nothing'>"));
+    }
+
+    @Test
+    public void testNarrowestWideEnoughVariant() {
+        assertEquals("d.jpg", select("<img src='a.jpg' srcset='c.jpg 1600w, a.jpg 320w, b.jpg 640w, d.jpg 480w'>"));
+    }
+
+    @Test
+    public void testAllVariantsTooSmall() {
+        assertNull(select("<img src='a.jpg' srcset='a.jpg 120w, b.jpg 240w'>"));
+    }
+
+    @Test
+    public void testDensityWithWidthAttribute() {
+        assertEquals("b.jpg", select("<img src='a.jpg' width='300' srcset='a.jpg 1x, b.jpg 2x, c.jpg 3x'>"));
+        assertEquals("b.jpg", select("<img src='a.jpg' width='300px' srcset='a.jpg, b.jpg 2x'>"));
+    }
+
+    @Test
+    public void testDensityWithoutWidthAttribute() {
+        assertEquals("c.jpg", select("<img src='a.jpg' srcset='b.jpg 1.5x, c.jpg 2x'>"));
+        // a width that is not in pixels is unknown
+        assertEquals("c.jpg", select("<img src='a.jpg' width='50%' srcset='b.jpg 1.5x, c.jpg 2x'>"));
+    }
+
+    @Test
+    public void testUrlEndingWithComma() {
+        assertEquals("b.jpg", select("<img srcset='b.jpg,, c.jpg 0.5x'>"));
+        assertEquals("http://example.com/a,b.jpg", select("<img srcset='http://example.com/a,b.jpg 800w'>"));
+    }
+
+    @Test
+    public void testInvalidDescriptorsAreIgnored() {
+        assertEquals("b.jpg", select("<img src='a.jpg' srcset='b.jpg 2q, c.jpg zzw'>"));
+    }
+
+    @Test
+    public void testDataUrlsAreSkipped() {
+        assertEquals("a.jpg", select("<img src='a.jpg' srcset='data:image/gif;base64,R0lGODlhAQABAAAAACw= 800w'>"));
+        assertEquals("a.jpg", select("<img src='DATA:image/gif;base64,R0lGODlhAQABAAAAACw=' data-src='a.jpg'>"));
+    }
+
+    @Test
+    public void testLazyAttributesArePreferredToSrc() {
+        assertEquals("real.jpg", select("<img src='placeholder.gif' data-src='real.jpg'>"));
+        assertEquals("real.jpg", select("<img src='placeholder.gif' data-original='real.jpg'>"));
+        assertEquals("set.jpg", select("<img src='placeholder.gif' data-src='real.jpg' data-srcset='set.jpg 2x'>"));
+        assertEquals("wide.jpg", select("<img src='placeholder.gif' data-srcset='wide.jpg 1024w'>"));
+    }
+
+    @Test
+    public void testPictureSources() {
+        final ImageCandidates candidates = new ImageCandidates();
+        candidates.addSource(tag("<source type='image/webp' srcset='a.webp 800w'>"));
+        candidates.addSource(tag("<source type='IMAGE/JPEG' srcset='a.jpg 800w, b.jpg 1600w'>"));
+        candidates.addImage(tag("<img src='fallback.jpg'>"));
+        assertEquals("a.jpg", candidates.select());
+
+        candidates.clear();
+        assertTrue(candidates.isEmpty());
+        candidates.addSource(tag("<source type='image/webp' srcset='a.webp 800w'>"));
+        assertTrue(candidates.isEmpty());
+        candidates.addImage(tag("<img src='fallback.jpg'>"));
+        assertEquals("fallback.jpg", candidates.select());
+    }
+}
@@ -0,0 +1,146 @@
+package gr.iti.mklab.image;
+
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.bson.types.ObjectId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ImageArchiveTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static ImageArchive.Record record(String url, String contentType, int length, long seed) {
+        final byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        final Header[] headers = {new BasicHeader("Content-Type", contentType), new BasicHeader("Last-Modified", "Sat, 17 Oct 2015 10:00:00 GMT")};
+        return new ImageArchive.Record(url, 1445076000000L + seed, 200, headers, content);
+    }
+
+    private static void assertRecordEquals(ImageArchive.Record expected, ImageArchive.Record actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getUrl(), actual.getUrl());
+        assertEquals(expected.getTime(), actual.getTime());
+        assertEquals(expected.getStatus(), actual.getStatus());
+        assertEquals(expected.getHeaders().length, actual.getHeaders().length);
+        for (int i = 0; i < expected.getHeaders().length; i++) {
+            assertEquals(expected.getHeaders()[i].getName(), actual.getHeaders()[i].getName());
+            assertEquals(expected.getHeaders()[i].getValue(), actual.getHeaders()[i].getValue());
+        }
+        assertArrayEquals(expected.getContent(), actual.getContent());
+    }
+
+    /**
+     * Waits for the writer thread to commit the records appended so far, so that the next ones go in another block.
+     */
+    private static void awaitArchived(ImageArchive archive, long count) throws InterruptedException {
+        for (int i = 0; i < 500 && archive.getArchivedCount() < count; i++) Thread.sleep(10);
+        assertEquals(count, archive.getArchivedCount());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final File folder = temporaryFolder.newFolder("archive");
+        final ImageArchive.Record[] records = new ImageArchive.Record[20];
+        final ImageArchive archive = new ImageArchive(folder);
+        for (int i = 0; i < records.length; i++) {
+            // stored and deflated blocks
+            final String contentType = i % 2 == 0 ? "image/jpeg" : "image/x-ms-bmp";
+            records[i] = record("http://www.example.com/images/" + i + ".jpg", contentType, 1000 * i, i);
+            assertTrue(archive.append(records[i]));
+        }
+        archive.close();
+        assertEquals(records.length, archive.getArchivedCount());
+        assertEquals(1, ImageArchive.segments(folder).length);
+
+        final ImageArchive.Reader reader = new ImageArchive.Reader(folder);
+        for (ImageArchive.Record record : records) assertRecordEquals(record, reader.next());
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testNewSegmentOnReopen() throws IOException {
+        final File folder = temporaryFolder.newFolder("archive");
+        final ImageArchive.Record first = record("http://www.example.com/a.png", "image/png", 100, 1);
+        final ImageArchive.Record second = record("http://www.example.com/b.png", "image/png", 100, 2);
+        ImageArchive archive = new ImageArchive(folder);
+        archive.append(first);
+        archive.close();
+        archive = new ImageArchive(folder);
+        archive.append(second);
+        archive.close();
+        assertEquals(2, ImageArchive.segments(folder).length);
+
+        final ImageArchive.Reader reader = new ImageArchive.Reader(folder);
+        assertRecordEquals(first, reader.next());
+        assertRecordEquals(second, reader.next());
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testTruncatedBlockIsSkipped() throws IOException, InterruptedException {
+        final File folder = temporaryFolder.newFolder("archive");
+        final ImageArchive.Record first = record("http://www.example.com/a.jpg", "image/jpeg", 5000, 1);
+        final ImageArchive.Record second = record("http://www.example.com/b.jpg", "image/jpeg", 5000, 2);
+        final ImageArchive archive = new ImageArchive(folder);
+        archive.append(first);
+        awaitArchived(archive, 1);
+        archive.append(second);
+        archive.close();
+
+        // a crash in the middle of the write of the second block
+        final File[] segments = ImageArchive.segments(folder);
+        assertEquals(1, segments.length);
+        final RandomAccessFile file = new RandomAccessFile(segments[0], "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        final ImageArchive.Reader reader = new ImageArchive.Reader(folder);
+        assertRecordEquals(first, reader.next());
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testPageContextIsArchived() throws IOException {
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 206, "Partial Content");
+        response.addHeader("Content-Type", "image/jpeg");
+        response.addHeader("Content-Range", "bytes 0-99/100");
+        // a server cannot forge the page of an image
+        response.addHeader(ImageArchive.PAGE_URL_HEADER, "http://www.example.org/forged.html");
+        final ObjectId id = new ObjectId();
+        final Header[] headers = ImageFetcher.archivedHeaders(response, id, URI.create("http://www.example.com/page.html"), "A caf\u00E9 at night");
+
+        final File folder = temporaryFolder.newFolder("archive");
+        final ImageArchive archive = new ImageArchive(folder);
+        archive.append(new ImageArchive.Record("http://www.example.com/a.jpg", 1445076000000L, 200, headers, new byte[100]));
+        archive.close();
+
+        final ImageArchive.Reader reader = new ImageArchive.Reader(folder);
+        final ImageArchive.Record record = reader.next();
+        reader.close();
+        assertEquals(4, record.getHeaders().length);
+        assertEquals("image/jpeg", record.getFirstHeader("Content-Type").getValue());
+        assertEquals(id, ImageArchive.imageId(record.getUrl(), record.getFirstHeader(ImageArchive.ID_HEADER)));
+        assertEquals("http://www.example.com/page.html", record.getFirstHeader(ImageArchive.PAGE_URL_HEADER).getValue());
+        assertEquals("A caf\u00E9 at night", record.getFirstHeader(ImageArchive.ALT_TEXT_HEADER).getValue());
+    }
+}
@@ -0,0 +1,41 @@
+package gr.iti.mklab.image;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImageDecoderTest {
+
+    /**
+     * @return the number of pixels of an image decoded with a subsampling step.
+     */
+    private static long pixels(int width, int height, int step) {
+        return (long) ((width + step - 1) / step) * ((height + step - 1) / step);
+    }
+
+    @Test
+    public void testSmallImagesAreNotSubsampled() {
+        assertEquals(1, ImageDecoder.subsampling(500, 400, 768 * 512));
+        assertEquals(1, ImageDecoder.subsampling(768, 512, 768 * 512));
+        assertEquals(1, ImageDecoder.subsampling(1500, 1000, 768 * 512));
+    }
+
+    @Test
+    public void testExactSteps() {
+        assertEquals(2, ImageDecoder.subsampling(1536, 1024, 768 * 512));
+        assertEquals(4, ImageDecoder.subsampling(3072, 2048, 768 * 512));
+    }
+
+    @Test
+    public void testLargestStepKeepingEnoughPixels() {
+        final int maxPixels = 768 * 512;
+        final int[][] sizes = {{6000, 4000}, {4000, 6000}, {3001, 1999}, {20000, 400}, {12345, 6789}};
+        for (int[] size : sizes) {
+            final int step = ImageDecoder.subsampling(size[0], size[1], maxPixels);
+            assertTrue(step >= 1);
+            assertTrue(pixels(size[0], size[1], step) >= maxPixels);
+            assertTrue(pixels(size[0], size[1], step + 1) < maxPixels);
+        }
+    }
+}
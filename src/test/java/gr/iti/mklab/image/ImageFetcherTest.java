@@ -0,0 +1,131 @@
+package gr.iti.mklab.image;
+
+import com.google.common.hash.Hashing;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import gr.iti.mklab.bubing.parser.ITIHTMLParser;
+import it.unimi.di.law.bubing.parser.Parser;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImageFetcherTest {
+
+    private static final URI PAGE = URI.create("http://www.example.com/page.html");
+    /**
+     * A bound on the time taken to hand over images, well below the read timeout of a stalled download.
+     */
+    private static final long HANDOVER_MILLIS = VisualIndexer.readTimeout / 2;
+
+    /**
+     * A server holding every request until {@link #release} is counted down, then answering 404.
+     */
+    private HttpServer server;
+    private ExecutorService handlers;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(handlers = Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        release.countDown();
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    private URI image(String host, String path) {
+        return URI.create("http://" + host + ":" + server.getAddress().getPort() + path);
+    }
+
+    private static void await(AtomicInteger counter, int value) throws InterruptedException {
+        for (int i = 0; i < 500 && counter.get() < value; i++) Thread.sleep(10);
+        assertEquals(value, counter.get());
+    }
+
+    @Test
+    public void testQueueIsBounded() throws InterruptedException {
+        final ImageFetcher fetcher = new ImageFetcher(2, 4);
+        final long start = System.nanoTime();
+        int submitted = 0;
+        for (int i = 0; i < 20; i++) if (fetcher.submit(image("127.0.0.1", "/bounded/" + i + ".jpg"), PAGE, null)) submitted++;
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < HANDOVER_MILLIS);
+
+        // one image per thread is being downloaded, the queue is full and the rest is dropped
+        assertEquals(2 + 4, submitted);
+        assertEquals(20 - submitted, fetcher.getDroppedCount());
+        await(requests, 2);
+        assertEquals(4, fetcher.getQueueSize());
+
+        // once the host answers the queued images are downloaded, and only them
+        release.countDown();
+        for (int i = 0; i < 500 && fetcher.getQueueSize() > 0; i++) Thread.sleep(10);
+        await(requests, submitted);
+        Thread.sleep(100);
+        assertEquals(submitted, requests.get());
+    }
+
+    private static BasicHttpResponse pageResponse(String page) throws IOException {
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        final ByteArrayEntity entity = new ByteArrayEntity(page.getBytes("UTF-8"));
+        entity.setContentType("text/html; charset=UTF-8");
+        response.setEntity(entity);
+        return response;
+    }
+
+    @Test
+    public void testParseDoesNotWaitForImages() throws IOException, InterruptedException {
+        final int images = ImageFetcher.FETCH_THREADS + 10;
+        final StringBuilder page = new StringBuilder("<html><body>");
+        for (int i = 0; i < images; i++)
+            page.append("<img src=\"").append(image("localhost", "/parse/" + i + ".jpg")).append("\" alt=\"image ").append(i).append("\">");
+        page.append("</body></html>");
+
+        final ITIHTMLParser<Void> parser = new ITIHTMLParser<Void>(Hashing.md5(), (Parser.TextProcessor<Void>) null, false, ITIHTMLParser.CHAR_BUFFER_SIZE);
+        // loads the classes of the parser and of the fetcher, so that only the handover is timed
+        parser.parse(PAGE, pageResponse("<html><body><p>warm-up</p></body></html>"), new ITIHTMLParser.SetLinkReceiver());
+        ImageFetcher.getInstance();
+        final long start = System.nanoTime();
+        parser.parse(PAGE, pageResponse(page.toString()), new ITIHTMLParser.SetLinkReceiver());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < HANDOVER_MILLIS);
+
+        // the host has not answered: every image is still being downloaded or waiting for a thread
+        final ImageFetcher fetcher = ImageFetcher.getInstance();
+        assertEquals(0, fetcher.getDroppedCount());
+        assertEquals(images - ImageFetcher.FETCH_THREADS, fetcher.getQueueSize());
+    }
+}
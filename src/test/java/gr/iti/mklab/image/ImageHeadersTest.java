@@ -0,0 +1,81 @@
+package gr.iti.mklab.image;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class ImageHeadersTest {
+
+    private static byte[] encode(String format, int width, int height, int type) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, type), format, out);
+        return out.toByteArray();
+    }
+
+    private static void assertDimensions(int width, int height, byte[] b, int length) {
+        final long dimensions = ImageHeaders.dimensions(b, length);
+        assertEquals(width, ImageHeaders.width(dimensions));
+        assertEquals(height, ImageHeaders.height(dimensions));
+    }
+
+    @Test
+    public void testJpeg() throws IOException {
+        final byte[] jpeg = encode("jpg", 640, 481, BufferedImage.TYPE_3BYTE_BGR);
+        assertDimensions(640, 481, jpeg, jpeg.length);
+    }
+
+    @Test
+    public void testPng() throws IOException {
+        final byte[] png = encode("png", 1023, 7, BufferedImage.TYPE_INT_ARGB);
+        assertDimensions(1023, 7, png, 24);
+    }
+
+    @Test
+    public void testGif() throws IOException {
+        final byte[] gif = encode("gif", 300, 200, BufferedImage.TYPE_BYTE_INDEXED);
+        assertDimensions(300, 200, gif, 10);
+    }
+
+    @Test
+    public void testBmp() throws IOException {
+        final byte[] bmp = encode("bmp", 401, 402, BufferedImage.TYPE_3BYTE_BGR);
+        assertDimensions(401, 402, bmp, 26);
+    }
+
+    @Test
+    public void testOs2Bmp() {
+        final byte[] bmp = new byte[26];
+        bmp[0] = 'B';
+        bmp[1] = 'M';
+        bmp[14] = 12; // the size of the OS/2 header
+        bmp[18] = (byte) 0x90; // 400
+        bmp[19] = 0x01;
+        bmp[20] = (byte) 0xF4; // 500
+        bmp[21] = 0x01;
+        assertDimensions(400, 500, bmp, bmp.length);
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        final byte[] jpeg = encode("jpg", 640, 480, BufferedImage.TYPE_3BYTE_BGR);
+        assertEquals(ImageHeaders.UNKNOWN, ImageHeaders.dimensions(jpeg, 20));
+        final byte[] png = encode("png", 640, 480, BufferedImage.TYPE_INT_RGB);
+        assertEquals(ImageHeaders.UNKNOWN, ImageHeaders.dimensions(png, 23));
+    }
+
+    @Test
+    public void testUnknownFormat() {
+        final byte[] b = "<html><body>not an image</body></html>".getBytes();
+        assertEquals(ImageHeaders.UNKNOWN, ImageHeaders.dimensions(b, b.length));
+        assertEquals(ImageHeaders.UNKNOWN, ImageHeaders.dimensions(new byte[0], 0));
+        final byte[] zeros = new byte[64];
+        Arrays.fill(zeros, (byte) 0);
+        assertEquals(ImageHeaders.UNKNOWN, ImageHeaders.dimensions(zeros, zeros.length));
+    }
+}
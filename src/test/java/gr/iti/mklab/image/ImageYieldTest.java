@@ -0,0 +1,72 @@
+package gr.iti.mklab.image;
+
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImageYieldTest {
+
+    private static URI uri(String host, String path) {
+        return URI.create("http://" + host + path);
+    }
+
+    /**
+     * Records enough rejected images of a host for it to be skipped.
+     *
+     * @return the number of outcomes recorded.
+     */
+    private static int recordRejections(ImageYield yield, String host) {
+        final int count = ImageYield.MIN_SAMPLES + ImageYield.MIN_SAMPLES / 2;
+        for (int i = 0; i < count; i++) yield.record(uri(host, "/ads/x" + i + ".jpg"), false);
+        return count;
+    }
+
+    @Test
+    public void testUnknownHostsAreAdmitted() {
+        final ImageYield yield = new ImageYield();
+        assertTrue(yield.admit(uri("www.example.com", "/a.jpg")));
+        for (int i = 0; i < ImageYield.MIN_SAMPLES - 1; i++) yield.record(uri("www.example.com", "/img/" + i + ".jpg"), false);
+        assertTrue(yield.admit(uri("www.example.com", "/img/a.jpg")));
+    }
+
+    @Test
+    public void testGoodHostsAreAdmitted() {
+        final ImageYield yield = new ImageYield();
+        for (int i = 0; i < 2 * ImageYield.MIN_SAMPLES; i++) yield.record(uri("photos.example.org", "/2015/10/" + i + ".jpg"), i % 10 == 0);
+        for (int i = 0; i < ImageYield.PROBE_RATE; i++) assertTrue(yield.admit(uri("photos.example.org", "/2015/11/" + i + ".jpg")));
+    }
+
+    @Test
+    public void testBadHostsAreSkippedButProbed() {
+        final ImageYield yield = new ImageYield();
+        recordRejections(yield, "bad.example.com");
+        int admitted = 0;
+        for (int i = 0; i < ImageYield.PROBE_RATE; i++) if (yield.admit(uri("bad.example.com", "/ads/y" + i + ".jpg"))) admitted++;
+        assertEquals(1, admitted);
+    }
+
+    @Test
+    public void testGoodFolderOfBadHost() {
+        final ImageYield yield = new ImageYield();
+        recordRejections(yield, "bad.example.com");
+        for (int i = 0; i < ImageYield.MIN_SAMPLES; i++) yield.record(uri("bad.example.com", "/photos/2015/" + i + ".jpg"), true);
+        assertTrue(yield.admit(uri("bad.example.com", "/photos/2015/a.jpg")));
+        assertFalse(yield.admit(uri("bad.example.com", "/ads/a.jpg")));
+    }
+
+    @Test
+    public void testDecay() {
+        final ImageYield yield = new ImageYield();
+        long recorded = recordRejections(yield, "bad.example.com");
+        assertFalse(yield.admit(uri("bad.example.com", "/ads/a.jpg")));
+        // the outcomes of other hosts, up to the first decay
+        for (; recorded < ImageYield.DECAY_INTERVAL; recorded++) yield.record(uri("good.example.org", "/photos/" + recorded + ".jpg"), true);
+        // the counters of the bad host are halved, below the samples needed for a decision
+        assertTrue(yield.admit(uri("bad.example.com", "/ads/b.jpg")));
+        assertTrue(yield.admit(uri("bad.example.com", "/ads/c.jpg")));
+    }
+}
@@ -0,0 +1,70 @@
+package gr.iti.mklab.image;
+
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PerceptualHashTest {
+
+    /**
+     * The default of {@link VisualIndexer#NEAR_DUPLICATE_DISTANCE}.
+     */
+    private static final int NEAR_DUPLICATE_DISTANCE = 4;
+
+    /**
+     * An image with fine stripes over a coarse pattern, which sampling a few pixels per cell would alias.
+     */
+    private static BufferedImage photo(int width, int height) {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                final int coarse = (int) (80 + 60 * Math.sin(7.0 * x / width) * Math.cos(5.0 * y / height));
+                final int grey = Math.min(255, coarse + (x % 3 == 0 ? 60 : 0));
+                image.setRGB(x, y, new Color(grey, grey, grey).getRGB());
+            }
+        return image;
+    }
+
+    private static BufferedImage resize(BufferedImage image, int width, int height) {
+        final BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = resized.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image.getScaledInstance(width, height, java.awt.Image.SCALE_AREA_AVERAGING), 0, 0, null);
+        g.dispose();
+        return resized;
+    }
+
+    @Test
+    public void testResizedCopiesAreNearDuplicates() {
+        final BufferedImage original = photo(900, 600);
+        final long hash = PerceptualHash.dHash(original);
+        assertTrue(PerceptualHash.isDistinctive(hash));
+        assertTrue(PerceptualHash.distance(hash, PerceptualHash.dHash(resize(original, 301, 203))) <= NEAR_DUPLICATE_DISTANCE);
+        assertTrue(PerceptualHash.distance(hash, PerceptualHash.dHash(resize(original, 450, 300))) <= NEAR_DUPLICATE_DISTANCE);
+    }
+
+    @Test
+    public void testGreyscaleImagesHashLikeColourOnes() {
+        final BufferedImage original = photo(640, 480);
+        final BufferedImage grey = new BufferedImage(640, 480, BufferedImage.TYPE_BYTE_GRAY);
+        grey.getGraphics().drawImage(original, 0, 0, null);
+        assertTrue(PerceptualHash.distance(PerceptualHash.dHash(original), PerceptualHash.dHash(grey)) <= 2);
+    }
+
+    @Test
+    public void testFlatImagesAreNotDistinctive() {
+        final BufferedImage white = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = white.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 400, 300);
+        g.dispose();
+        assertFalse(PerceptualHash.isDistinctive(PerceptualHash.dHash(white)));
+        assertFalse(PerceptualHash.isDistinctive(PerceptualHash.dHash(new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB))));
+    }
+}
@@ -0,0 +1,82 @@
+package gr.iti.mklab.image;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.bson.types.ObjectId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ReindexerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static BasicHttpResponse imageResponse() {
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("Content-Type", "image/jpeg");
+        // a server cannot choose the id of its images
+        response.addHeader(ImageArchive.ID_HEADER, new ObjectId().toString());
+        return response;
+    }
+
+    /**
+     * Replays an archive into a collection keyed by id, as the database stores the images.
+     *
+     * @return the number of records replayed.
+     */
+    private static int replay(File folder, Map<ObjectId, String> collection) throws IOException {
+        final ImageArchive.Reader reader = new ImageArchive.Reader(folder);
+        int records = 0;
+        for (ImageArchive.Record record; (record = reader.next()) != null; records++) {
+            final HttpResponse response = Reindexer.response(record);
+            assertNotNull(response);
+            final ObjectId id = ImageArchive.imageId(record.getUrl(), response.getFirstHeader(ImageArchive.ID_HEADER));
+            if (!collection.containsKey(id)) collection.put(id, record.getUrl());
+        }
+        reader.close();
+        return records;
+    }
+
+    @Test
+    public void testReplayDoesNotDuplicateDocuments() throws IOException {
+        final ObjectId fetched = new ObjectId(), crawled = new ObjectId();
+        final File folder = temporaryFolder.newFolder("archive");
+        final ImageArchive archive = new ImageArchive(folder);
+        // an image found in a page, one crawled directly and one archived before ids were
+        archive.append(new ImageArchive.Record("http://www.example.com/fetched.jpg", 1, 200,
+                ImageFetcher.archivedHeaders(imageResponse(), fetched, URI.create("http://www.example.com/"), null), new byte[10]));
+        archive.append(new ImageArchive.Record("http://www.example.com/crawled.jpg", 2, 200,
+                ImageArchive.withId(imageResponse().getAllHeaders(), crawled), new byte[10]));
+        archive.append(new ImageArchive.Record("http://www.example.com/old.jpg", 3, 200,
+                new Header[]{new BasicHeader("Content-Type", "image/jpeg")}, new byte[10]));
+        archive.close();
+
+        final Map<ObjectId, String> collection = new HashMap<ObjectId, String>();
+        assertEquals(3, replay(folder, collection));
+        assertEquals(3, collection.size());
+        assertEquals("http://www.example.com/fetched.jpg", collection.get(fetched));
+        assertEquals("http://www.example.com/crawled.jpg", collection.get(crawled));
+
+        assertEquals(3, replay(folder, collection));
+        assertEquals(3, collection.size());
+    }
+
+    @Test
+    public void testRecordWithoutContentTypeIsSkipped() {
+        assertNull(Reindexer.response(new ImageArchive.Record("http://www.example.com/a.jpg", 1, 200, new Header[0], new byte[10])));
+    }
+}
@@ -0,0 +1,53 @@
+package gr.iti.mklab.image;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testQuantizersCanBeShared() {
+        // if IVFPQ renames its fields every segment loads its own copy of the quantizers
+        assertNotNull(SegmentedIndex.COARSE_QUANTIZER_FIELD);
+        assertNotNull(SegmentedIndex.PRODUCT_QUANTIZER_FIELD);
+    }
+
+    @Test
+    public void testLegacyIndexIsMovedIntoFirstSegment() throws IOException {
+        final File folder = temporaryFolder.newFolder("index");
+        assertTrue(new File(folder, "je.lck").createNewFile());
+        assertTrue(new File(folder, "BDB_1024").mkdir());
+        assertTrue(new File(folder, "BDB_1024/00000000.jdb").createNewFile());
+
+        assertTrue(SegmentedIndex.migrateLegacyIndex(folder));
+        final File first = new File(folder, "segment-00000");
+        assertEquals(1, folder.list().length);
+        assertTrue(new File(first, "je.lck").isFile());
+        assertTrue(new File(first, "BDB_1024/00000000.jdb").isFile());
+
+        // once segmented, the folder is left alone
+        assertTrue(new File(folder, "notes.txt").createNewFile());
+        assertFalse(SegmentedIndex.migrateLegacyIndex(folder));
+        assertTrue(new File(folder, "notes.txt").isFile());
+    }
+
+    @Test
+    public void testEmptyFolderIsNotMigrated() throws IOException {
+        final File folder = temporaryFolder.newFolder("empty");
+        assertFalse(SegmentedIndex.migrateLegacyIndex(folder));
+        assertFalse(SegmentedIndex.migrateLegacyIndex(new File(folder, "missing")));
+        assertEquals(0, folder.list().length);
+    }
+}